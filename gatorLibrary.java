@@ -1,52 +1,312 @@
 import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
 
-// RedBlackTree Node class which stores information about required properties such as bookId, bookName, reservations , color etc.
+// BookRecord class which stores the information about a book such as bookId, bookName, availability and reservations
+// the book indexes keep their books in it: RedBlackTreeNode adds the links and color of a tree node, BPlusTree keeps
+// plain records in the arrays of its leaves
 
-class RedBlackTreeNode {
+class BookRecord {
     int bookId;
-    String bookName;
-    String authorName;
-    String availabilityStatus;
+    byte[] titleChunk; // BookStrings chunk of the title
+    int titleOffset; // where the title (its length, then its UTF-8 bytes) starts in titleChunk
+    String author; // the name of the author, shared with the other books of the author in the index (see BookStrings)
+    boolean available; // availability status, printed as "Yes" or "No"
     int borrowedBy;
     MinHeap reservationHeap;
-    RedBlackTreeNode left;
-    RedBlackTreeNode right;
-    RedBlackTreeNode parent;
-    String color;
 
-    public RedBlackTreeNode(int bookId,String bookName,String authorName,String availabilityStatus) {
+    public BookRecord(int bookId,String bookName,String authorName,boolean available,BookStrings strings) {
+        this(bookId,available);
+        strings.add(this,bookName,authorName);
+    }
+
+    public BookRecord(int bookId,boolean available) {
         this.bookId=bookId;
-        this.bookName=bookName;
-        this.authorName=authorName;
-        this.availabilityStatus=availabilityStatus;
+        this.available=available;
         this.borrowedBy=-1;
         this.reservationHeap=null;
-        this.left=null;
-        this.right=null;
-        this.parent=null;
-        this.color="";
+    }
+
+    // function to copy the book of another record, its title and reservation heap are shared
+    public BookRecord(BookRecord book) {
+        this(book.bookId,book.available);
+        copyBook(book);
+    }
+
+    void copyBook(BookRecord book){
+        bookId=book.bookId;
+        titleChunk=book.titleChunk;
+        titleOffset=book.titleOffset;
+        author=book.author;
+        available=book.available;
+        borrowedBy=book.borrowedBy;
+        reservationHeap=book.reservationHeap;
+    }
+
+    String bookName(){
+        return BookStrings.title(this);
+    }
+
+    String authorName(){
+        return author;
+    }
+}
+
+// RedBlackTree Node class which stores the book with the required tree properties such as children, parent, color etc.
+
+class RedBlackTreeNode extends BookRecord {
+    RedBlackTreeNode left;
+    RedBlackTreeNode right;
+    RedBlackTreeNode parent;
+    byte color; // RedBlackTree.RED or RedBlackTree.BLACK
+    int subtreeSize=1; // number of books in the subtree rooted at this node, for rank and range count queries
+
+    public RedBlackTreeNode(int bookId,String bookName,String authorName,boolean available,BookStrings strings) {
+        super(bookId,bookName,authorName,available,strings);
+        this.color=RedBlackTree.RED;
+    }
+
+    // function to make a node without a title, the NilNode
+    public RedBlackTreeNode(int bookId,boolean available) {
+        super(bookId,available);
+        this.color=RedBlackTree.RED;
+    }
+
+    // function to copy a node of a persistent tree, with its links, color and subtree size
+    public RedBlackTreeNode(RedBlackTreeNode node) {
+        super(node);
+        this.left=node.left;
+        this.right=node.right;
+        this.color=node.color;
+        this.subtreeSize=node.subtreeSize;
+    }
+}
+
+// BookIndex interface for the ordered index of the books by bookId which ConcurrentLibrary runs its commands on,
+// implemented by RedBlackTree (the default, it keeps the color flip count the output reports) and BPlusTree (--index=bptree)
+// borrowBook, returnBook and cancelReservations only change the book and the patron index, so they are the same for
+// every index and are written here once on top of search
+
+interface BookIndex {
+    int BORROWED = 0; // results of borrowBook
+    int RESERVED = 1;
+    int WAITLIST_FULL = 2;
+
+    int size();
+    BookRecord search(int bookId);
+    // search which can run while a writer changes the index, it may give a wrong answer or throw a RuntimeException
+    // but always ends (the caller validates its optimistic read and searches again under the lock)
+    boolean searchBounded(int bookId);
+    BookRecord select(int k);
+    int countLess(int bookId);
+    BookRecord floor(int bookId);
+    BookRecord ceiling(int bookId);
+    // function which calls the visitor on at most limit books from lowBookId to highBookId in bookId order, returns the number visited
+    int rangeSearch(int lowBookId, int highBookId, int limit, BookVisitor visitor);
+    // function to insert a book, an insert of a bookId which exists already leaves the index unchanged
+    void insert(int bookId, String bookName, String authorName, boolean available);
+    // function to insert a batch of books, bookIds which exist already or repeat in the batch are ignored
+    void bulkInsert(InsertBatch batch);
+    String delete(int bookId);
+    int colorFlipCount();
+    void readStats(LibraryStats.TreeStats stats);
+    int reservationLimit();
+    CatalogIndex catalogIndex();
+    PatronIndex patronIndex();
+
+    // function to count the books from lowBookId to highBookId in O(log n)
+    default int countRange(int lowBookId, int highBookId){
+        if(lowBookId>highBookId) return 0;
+        int atMostHigh=highBookId==Integer.MAX_VALUE?size():countLess(highBookId+1);
+        return atMostHigh-countLess(lowBookId);
+    }
+
+    // function to find the rank of a book (1 for the smallest bookId), 0 if it does not exist
+    default int rank(int bookId){
+        return search(bookId)==null?0:countLess(bookId)+1;
+    }
+
+    // function to find closest bookId for given target
+    // it returns the books whose bookId's have minimum difference from target bookId (both of them on a tie, in bookId order)
+    default List<BookRecord> findClosest(int targetBookId){
+        BookRecord floor=floor(targetBookId);
+        return closest(targetBookId,floor,floor!=null && floor.bookId==targetBookId?floor:ceiling(targetBookId));
+    }
+
+    static List<BookRecord> closest(int targetBookId, BookRecord floor, BookRecord ceiling){
+        List<BookRecord>result=new ArrayList<>(2);
+        if(floor!=null && floor.bookId==targetBookId){
+          result.add(floor);
+          return result;
+        }
+        long floorDiff=floor==null?Long.MAX_VALUE:(long)targetBookId-floor.bookId;
+        long ceilingDiff=ceiling==null?Long.MAX_VALUE:(long)ceiling.bookId-targetBookId;
+        if(floor!=null && floorDiff<=ceilingDiff) result.add(floor);
+        if(ceiling!=null && ceilingDiff<=floorDiff) result.add(ceiling);
+        return result;
+    }
+
+    // if book is available, borrow it, otherwise create reservation heap and insert the patron
+    // returns BORROWED, RESERVED or WAITLIST_FULL (the reservation heap is at reservationLimit)
+    default int borrowBook(int patronId, int bookId, int patronPriority){
+        BookRecord node=search(bookId);
+        if(node.available){
+            node.available=false;
+            node.borrowedBy=patronId;
+            patronIndex().borrowed(patronId,bookId);
+            return BORROWED;
+        }
+        if(node.reservationHeap==null) node.reservationHeap=new MinHeap(4,reservationLimit());
+        if(!node.reservationHeap.insert(patronId,patronPriority)) return WAITLIST_FULL;
+        patronIndex().reserved(patronId,bookId);
+        return RESERVED;
+    }
+
+    // change availability to yes and if reservation heap is not empty, allocate that book to top patron in min heap
+    default int returnBook(int patronId,int bookId){
+        BookRecord node=search(bookId);
+        if(node.borrowedBy!=-1) patronIndex().returned(node.borrowedBy,bookId);
+        node.available=true;
+        node.borrowedBy=-1;
+        if(node.reservationHeap==null || node.reservationHeap.size()==0) return -1;
+        int minPatronId = node.reservationHeap.removeMin();
+        node.available=false;
+        node.borrowedBy=minPatronId;
+        patronIndex().unreserved(minPatronId,bookId);
+        patronIndex().borrowed(minPatronId,bookId);
+        return minPatronId;
+    }
+
+    // function to cancel the reservations of a patron for a book, returns false if the patron had none
+    default boolean cancelReservations(int patronId, int bookId){
+        BookRecord node=search(bookId);
+        if(node==null || node.reservationHeap==null) return false;
+        int removed=node.reservationHeap.removePatron(patronId);
+        for(int i=0;i<removed;++i) patronIndex().unreserved(patronId,bookId);
+        return removed>0;
     }
 }
 
 // Red Black Tree class which contains all the functions for operations on it such as insert, delete, etc.
 
-class RedBlackTree {
+class RedBlackTree implements BookIndex {
 
-    String RED = "RED";
-    String BLACK = "BLACK";
+    static final byte RED = 0;
+    static final byte BLACK = 1;
+    static final byte NO_COLOR = -1; // previous color of a node which did not exist before the current operation
     int colorFlips=0;
-    Map<Integer,String>oldColorMap=new HashMap<>();
+    RedBlackTreeNode[] recoloredNodes=new RedBlackTreeNode[16]; // nodes recolored by the current insert or delete
+    byte[] previousColors=new byte[16]; // colors of recoloredNodes from before the current insert or delete
+    int recoloredCount=0;
 
+    int reservationLimit=0; // maximum number of reservations per book, 0 means no limit
+    long leftRotations=0; // number of rotations done by the fix-ups since the tree was created
+    long rightRotations=0;
+    final CatalogIndex catalogIndex=new CatalogIndex(); // books by author and by title
+    final PatronIndex patronIndex=new PatronIndex(); // borrowed and reserved books by patron
+    final BookStrings strings; // titles and authors of the books
     RedBlackTreeNode root; // root node of red black tree
 
     public RedBlackTree() {
+      this(new BookStrings(true));
+    }
+
+    RedBlackTree(BookStrings strings) {
+      this.strings = strings;
       root = null; // initially root is null
     }
 
+    // function to get the number of books in the tree
+    public int size(){
+        return sizeOf(root);
+    }
+
+    public int reservationLimit(){
+        return reservationLimit;
+    }
+
+    public CatalogIndex catalogIndex(){
+        return catalogIndex;
+    }
+
+    public PatronIndex patronIndex(){
+        return patronIndex;
+    }
+
+    // function to get the number of books in the subtree of a node (0 for null and the NilNode)
+    static int sizeOf(RedBlackTreeNode node){
+        return node==null?0:node.subtreeSize;
+    }
+
+    // function to update the subtree size of a node from its children
+    static void updateSize(RedBlackTreeNode node){
+        node.subtreeSize=sizeOf(node.left)+sizeOf(node.right)+1;
+    }
+
+    // function to count the books with bookId less than the given bookId
+    public int countLess(int bookId){
+        return countLess(root,bookId);
+    }
+
+    // the static forms of the queries below read the tree under any root, PersistentLibrary calls them on its versions
+    static int countLess(RedBlackTreeNode node, int bookId){
+        int count=0;
+        while(node!=null){
+            if(bookId<=node.bookId) node=node.left;
+            else {
+              count+=sizeOf(node.left)+1; // node and its left subtree are all smaller
+              node=node.right;
+            }
+        }
+        return count;
+    }
+
+    // function to find the book of rank k (1 for the smallest bookId), null if k is out of range
+    public RedBlackTreeNode select(int k){
+        return select(root,k);
+    }
+
+    static RedBlackTreeNode select(RedBlackTreeNode node, int k){
+        while(node!=null){
+            int leftSize=sizeOf(node.left);
+            if(k==leftSize+1) return node;
+            if(k<=leftSize) node=node.left;
+            else {
+              k-=leftSize+1;
+              node=node.right;
+            }
+        }
+        return null;
+    }
+
     // function to search a node in Red Black tree
     public RedBlackTreeNode search(int bookId) {
-        RedBlackTreeNode node = root;
+        return search(root,bookId);
+    }
+
+    static RedBlackTreeNode search(RedBlackTreeNode node, int bookId) {
         while (node != null) {
             if (bookId == node.bookId) {
               return node;
@@ -59,36 +319,95 @@ class RedBlackTree {
         return null;
     }
 
+    // search which can run while a writer changes the tree: it stops after more steps than a valid tree can take
+    public boolean searchBounded(int bookId){
+        RedBlackTreeNode node=root;
+        for(int steps=0;node!=null && steps<128;++steps){
+            if(bookId==node.bookId) return true;
+            node=bookId<node.bookId?node.left:node.right;
+        }
+        return false;
+    }
+
     // function to perform range search on red black tree from low to high bookId's
     public List<RedBlackTreeNode> rangeSearch(int lowBookId, int highBookId){
-        RedBlackTreeNode node = root;
         List<RedBlackTreeNode> arr = new ArrayList<>();
-        rangeSearchHelper(arr,node,lowBookId,highBookId);
+        RangeCursor cursor = new RangeCursor(this,lowBookId,highBookId);
+        while(cursor.hasNext()) arr.add(cursor.next());
         return arr;
     }
 
-    // search helper based on low and high bookId range
-    public void rangeSearchHelper(List<RedBlackTreeNode>arr,RedBlackTreeNode node,int lowBookId,int highBookId){
-        if(node==null) return;
-        if(lowBookId<node.bookId) rangeSearchHelper(arr,node.left,lowBookId,highBookId);
-        if(lowBookId<=node.bookId && highBookId>=node.bookId) arr.add(node);
-        rangeSearchHelper(arr, node.right, lowBookId, highBookId);
+    // the books are visited while the cursor walks the tree, so the first ones are visited right away
+    public int rangeSearch(int lowBookId, int highBookId, int limit, BookVisitor visitor){
+        RangeCursor cursor=new RangeCursor(this,lowBookId,highBookId);
+        int count=0;
+        for(;count<limit && cursor.hasNext();++count) visitor.visit(cursor.next());
+        return count;
     }
 
-    // function to find closest bookId for given target
-    // it returns the nodes whose bookId's have minimum difference from target bookId
-    public List<RedBlackTreeNode> findClosest(int targetBookId){
-        List<RedBlackTreeNode> arr = new ArrayList<>();
-        inorder(arr,root);
-        int min_diff=Integer.MAX_VALUE;
-        for(RedBlackTreeNode node:arr){
-          min_diff=Math.min(min_diff,Math.abs(node.bookId-targetBookId));
+    // function to find the node with the largest bookId less than or equal to given bookId (null if there is none)
+    public RedBlackTreeNode floor(int bookId){
+        return floor(root,bookId);
+    }
+
+    static RedBlackTreeNode floor(RedBlackTreeNode node, int bookId){
+        RedBlackTreeNode floor = null;
+        while (node != null) {
+            if (bookId == node.bookId) {
+              return node;
+            } else if (bookId < node.bookId) {
+              node = node.left;
+            } else {
+              floor = node; // candidate, a closer one can only be in the right subtree
+              node = node.right;
+            }
         }
-        List<RedBlackTreeNode>result=new ArrayList<>();
-        for(RedBlackTreeNode node: arr){
-          if(Math.abs(node.bookId-targetBookId)==min_diff) result.add(node);
+        return floor;
+    }
+
+    // function to find the node with the smallest bookId greater than or equal to given bookId (null if there is none)
+    public RedBlackTreeNode ceiling(int bookId){
+        return ceiling(root,bookId);
+    }
+
+    static RedBlackTreeNode ceiling(RedBlackTreeNode node, int bookId){
+        RedBlackTreeNode ceiling = null;
+        while (node != null) {
+            if (bookId == node.bookId) {
+              return node;
+            } else if (bookId < node.bookId) {
+              ceiling = node; // candidate, a closer one can only be in the left subtree
+              node = node.left;
+            } else {
+              node = node.right;
+            }
         }
-        return result;
+        return ceiling;
+    }
+
+    // function to find closest bookId for given target
+    public List<BookRecord> findClosest(int targetBookId){
+        return findClosest(root,targetBookId);
+    }
+
+    // function to find closest bookId for given target under any root in one descent: the last node where the path
+    // turned right is the floor and the last node where it turned left is the ceiling
+    static List<BookRecord> findClosest(RedBlackTreeNode node, int targetBookId){
+        RedBlackTreeNode floor = null;
+        RedBlackTreeNode ceiling = null;
+        while (node != null) {
+            if (targetBookId == node.bookId) {
+              floor = node;
+              break;
+            } else if (targetBookId < node.bookId) {
+              ceiling = node;
+              node = node.left;
+            } else {
+              floor = node;
+              node = node.right;
+            }
+        }
+        return BookIndex.closest(targetBookId,floor,ceiling);
     }
 
     // inorder traversal of red black tree
@@ -99,63 +418,50 @@ class RedBlackTree {
         inorder(arr,root.right);
     }
 
-    // if book is available, borrow it, otherwise create reservation heap and insert the patron
-    public boolean borrowBook(int patronId, int bookId, int patronPriority){
-        RedBlackTreeNode node=search(bookId);
-        if(node.availabilityStatus.equals("Yes")){
-            node.availabilityStatus="No";
-            node.borrowedBy=patronId;
-            return true;
-        }
-        if(node.reservationHeap==null) node.reservationHeap=new MinHeap(20);
-        MinHeapNode mhNode=new MinHeapNode(patronId, patronPriority, System.currentTimeMillis());
-        node.reservationHeap.insert(mhNode);
-        return false;
+    // function which returns color flip count
+    public int colorFlipCount(){
+        return colorFlips;
     }
 
-    // change availability to yes and if reservation heap is not empty, allocate that book to top patron in min heap
-    public int returnBook(int patronId,int bookId){
-        RedBlackTreeNode node=search(bookId);
-        node.availabilityStatus="Yes";
-        node.borrowedBy=-1;
-        if(node.reservationHeap==null) return -1;
-        MinHeapNode minNode = node.reservationHeap.removeMin();
-        node.availabilityStatus="No";
-        node.borrowedBy=minNode.patronId;
-        return minNode.patronId;
+    // function to change the color of a node during insert or delete fix-ups
+    // the first time a node is recolored in an operation, its color from before the operation is remembered
+    public void recolor(RedBlackTreeNode node, byte color){
+        if(node.color==color) return;
+        rememberColor(node,node.color);
+        node.color=color;
     }
 
-    // function which returns color flip count
-    public int colorFlipCount(){
-        return colorFlips;
+    // remembers the color a node had before the current operation (only the first call for a node counts)
+    // NO_COLOR marks a node which did not exist before the operation, its color changes are never counted
+    public void rememberColor(RedBlackTreeNode node, byte color){
+        for(int i=0;i<recoloredCount;++i){
+            if(recoloredNodes[i]==node) return;
+        }
+        if(recoloredCount==recoloredNodes.length){
+            recoloredNodes=Arrays.copyOf(recoloredNodes,2*recoloredCount);
+            previousColors=Arrays.copyOf(previousColors,2*recoloredCount);
+        }
+        recoloredNodes[recoloredCount]=node;
+        previousColors[recoloredCount]=color;
+        recoloredCount++;
     }
 
-    // function to count the color flips after every insert and delete operation
-    // it basically compares two maps (old color map and new color map)
-    // old color map is the colors of all nodes before insert or delete operation
-    // new color map is the colors of all nodes after insert or delete operation
-    // it iterates and checks the oldcolor map nodes and if the color is changed in new color map, it increments count of color flips
-    // finally oldcolormap becomes new color map for further iterations
+    // function to count the color flips at the end of every insert and delete operation
+    // only the nodes recolored during the operation are checked: a node whose color differs from the color
+    // its bookId had before the operation is a flip (a node flipped back and forth in one operation is not)
+    // new nodes and the temporary NilNode are not counted, as they had no color before the operation
     public void updateColorFlips(){
-        List<RedBlackTreeNode>arr=new ArrayList<>();
-        inorder(arr,root);
-        Map<Integer,String>newColorMap=new HashMap<>();
-        for(RedBlackTreeNode node:arr){
-            newColorMap.put(node.bookId,node.color);
-        }
-        for(Map.Entry<Integer,String>entry:oldColorMap.entrySet()){
-            String oldColor=entry.getValue();
-            if(newColorMap.get(entry.getKey())!=null){
-                String newColor=newColorMap.get(entry.getKey());
-                if(!oldColor.equals(newColor)) colorFlips++;
-            }
+        for(int i=0;i<recoloredCount;++i){
+            RedBlackTreeNode node=recoloredNodes[i];
+            byte previousColor=previousColors[i];
+            if(previousColor!=NO_COLOR && node.getClass()!=NilNode.class && previousColor!=node.color) colorFlips++;
+            recoloredNodes[i]=null;
         }
-        oldColorMap.clear();
-        oldColorMap.putAll(newColorMap);
+        recoloredCount=0;
     }
 
-    // Funtion to insert a value in the node
-    public void insert(int bookId, String bookName, String authorName, String availabilityStatus) {
+    // Funtion to insert a value in the node, an existing bookId is left as it is
+    public void insert(int bookId, String bookName, String authorName, boolean available) {
         RedBlackTreeNode node = root;
         RedBlackTreeNode parent = null;
         while (node != null) {
@@ -164,10 +470,14 @@ class RedBlackTree {
               node = node.left;
             } else if (bookId > node.bookId) {
               node = node.right;
+            } else {
+              return;
             }
         }
+        // the new book will be in the subtree of every node on the path
+        for (RedBlackTreeNode ancestor = parent; ancestor != null; ancestor = ancestor.parent) ancestor.subtreeSize++;
         // Inserting the new node
-        RedBlackTreeNode newNode = new RedBlackTreeNode(bookId,bookName,authorName,availabilityStatus);
+        RedBlackTreeNode newNode = new RedBlackTreeNode(bookId,bookName,authorName,available,strings);
         newNode.color = RED;
         if (parent == null) {
           root = newNode;
@@ -177,8 +487,115 @@ class RedBlackTree {
           parent.right = newNode;
         }
         newNode.parent = parent;
+        rememberColor(newNode, NO_COLOR);
+        catalogIndex.add(newNode);
 
         fixRBTPropertiesAfterInsert(newNode);
+        updateColorFlips(); // count the color flips done by the fix-up
+    }
+
+    // function to insert a batch of books at once (runs of InsertBook commands and catalog files)
+    // the new books are merged with the existing ones in bookId order and the whole tree is rebuilt balanced in O(n+m),
+    // unless the batch is so small compared to the tree that inserting the books one by one is cheaper
+    // color flips: a rebuilt batch counts as one operation, an existing book whose color after the rebuild differs from its
+    // color before it is one flip and new books are not counted (the same rule as for a single insert, but as the tree
+    // shape differs from inserting the books one by one, so can the count)
+    // bookIds which already exist or repeat in the batch are ignored
+    public void bulkInsert(InsertBatch batch){
+        int count=batch.size();
+        if(count==0) return;
+        long[] order=batch.sortedOrder(); // bookId in the high 32 bits and batch index in the low 32 bits, sorted
+        int size=size();
+        if(!rebuildsFor(count)){
+            for(long entry:order){
+                int index=(int)entry;
+                if(search(batch.bookIds[index])==null) insert(batch.bookIds[index],batch.bookNames[index],batch.authorNames[index],batch.available[index]);
+            }
+            return;
+        }
+        // merge the existing nodes (visited in order) with the sorted batch, skipping duplicate bookIds
+        RedBlackTreeNode[] nodes=new RedBlackTreeNode[size+count];
+        byte[] colors=new byte[size+count]; // color of every node before the rebuild, NO_COLOR for new nodes
+        int merged=0;
+        int next=0; // next batch entry in order
+        RedBlackTreeNode node=root;
+        while(node!=null && node.left!=null) node=node.left;
+        while(node!=null || next<count){
+            int batchBookId=next<count?(int)(order[next]>>32):0;
+            if(node!=null && (next==count || node.bookId<=batchBookId)){
+                if(next<count && node.bookId==batchBookId) next++; // the book exists already
+                nodes[merged]=node;
+                colors[merged++]=node.color;
+                node=successor(node);
+            }
+            else{
+                int index=(int)order[next++];
+                if(merged==0 || nodes[merged-1].bookId!=batchBookId){
+                    nodes[merged]=new RedBlackTreeNode(batchBookId,batch.bookNames[index],batch.authorNames[index],batch.available[index],strings);
+                    catalogIndex.add(nodes[merged]);
+                    colors[merged++]=NO_COLOR;
+                }
+            }
+        }
+        root=buildBalanced(nodes,0,merged-1,0,redLevel(merged),null);
+        for(int i=0;i<merged;++i){
+            if(colors[i]!=NO_COLOR && colors[i]!=nodes[i].color) colorFlips++;
+        }
+    }
+
+    // function which tells if bulkInsert rebuilds the tree for a batch of count books (n+m < m*log n) or inserts them one by one
+    public boolean rebuildsFor(int count){
+        int size=size();
+        return (long)count*(33-Integer.numberOfLeadingZeros(size))>=size;
+    }
+
+    // function to get the next node in bookId order using parent pointers (null after the last node)
+    public RedBlackTreeNode successor(RedBlackTreeNode node){
+        if(node.right!=null){
+            node=node.right;
+            while(node.left!=null) node=node.left;
+            return node;
+        }
+        while(node.parent!=null && node==node.parent.right) node=node.parent;
+        return node.parent;
+    }
+
+    // function which builds a balanced tree from nodes[low..high] sorted by bookId
+    // every level is complete except maybe the deepest one, nodes there are red and all others are black,
+    // so every path has the same number of black nodes and no red node has a red child
+    public RedBlackTreeNode buildBalanced(RedBlackTreeNode[] nodes, int low, int high, int level, int redLevel, RedBlackTreeNode parent){
+        if(low>high) return null;
+        int mid=(low+high)>>>1;
+        RedBlackTreeNode node=nodes[mid];
+        node.parent=parent;
+        node.left=buildBalanced(nodes,low,mid-1,level+1,redLevel,node);
+        node.right=buildBalanced(nodes,mid+1,high,level+1,redLevel,node);
+        node.color=level==redLevel?RED:BLACK;
+        node.subtreeSize=high-low+1;
+        return node;
+    }
+
+    // function which makes the tree out of nodes[from..to) sorted by bookId, which must not be in another tree anymore
+    public void build(RedBlackTreeNode[] nodes, int from, int to){
+        root=buildBalanced(nodes,from,to-1,0,redLevel(to-from),null);
+        for(int i=from;i<to;++i){
+            strings.adopt(nodes[i]);
+            catalogIndex.add(nodes[i]);
+            patronIndex.addBook(nodes[i]);
+        }
+    }
+
+    // function to get all nodes in bookId order
+    public RedBlackTreeNode[] nodesInOrder(){
+        RedBlackTreeNode[] nodes=new RedBlackTreeNode[size()];
+        RangeCursor cursor=new RangeCursor(this,Integer.MIN_VALUE,Integer.MAX_VALUE);
+        for(int i=0;cursor.hasNext();++i) nodes[i]=cursor.next();
+        return nodes;
+    }
+
+    // function which finds the level of the deepest nodes of a tree built by buildBalanced from count nodes
+    public static int redLevel(int count){
+        return 31-Integer.numberOfLeadingZeros(count);
     }
 
     // Find Maximum in left sub tree for inorder predecessor
@@ -195,12 +612,12 @@ class RedBlackTree {
 
         // If parent is null, we are inserting first node which is root, so color is black and return
         if (parent == null) {
-          node.color = BLACK;
+          recolor(node, BLACK);
           return;
         }
 
         // If parent is black return
-        if (parent.color.equals(BLACK)) {
+        if (parent.color == BLACK) {
           return;
         }
 
@@ -209,12 +626,12 @@ class RedBlackTree {
 
         // If no grandparent, parent is root
         if (grandparent == null) {
-          parent.color = BLACK;
+          recolor(parent, BLACK);
           return;
         }
 
         RedBlackTreeNode uncle = getRBTUncle(parent);
-        if (uncle != null && uncle.color.equals(RED)) {
+        if (uncle != null && uncle.color == RED) {
           uncleRed(parent, grandparent, uncle);
         }
 
@@ -234,9 +651,9 @@ class RedBlackTree {
     public void uncleRed(RedBlackTreeNode parent, RedBlackTreeNode grandparent, RedBlackTreeNode uncle) {
 
         // Uncle is red: recolor parent, uncle and grandparent
-        parent.color = BLACK;
-        uncle.color = BLACK;
-        grandparent.color = RED;
+        recolor(parent, BLACK);
+        recolor(uncle, BLACK);
+        recolor(grandparent, RED);
         
 
         // call it recursively on grandparent to further fix 2 consecutive reds
@@ -258,8 +675,8 @@ class RedBlackTree {
         rightRotate(grandparent);
 
         // Recoloring parent and grandparent
-        parent.color = BLACK;
-        grandparent.color = RED;
+        recolor(parent, BLACK);
+        recolor(grandparent, RED);
 
     }
 
@@ -278,8 +695,8 @@ class RedBlackTree {
         leftRotate(grandparent);
 
         // Recoloring parent and grandparent
-        parent.color = BLACK;
-        grandparent.color = RED;
+        recolor(parent, BLACK);
+        recolor(grandparent, RED);
     }
 
     // function which gets the uncle of a node (node's grandparent another child)
@@ -302,18 +719,22 @@ class RedBlackTree {
         if (node == null) {
           return "-1";
         }
+        catalogIndex.remove(node);
+        patronIndex.removeBook(node);
+        strings.release(node); // before clone, which moves another book into node
         // stores the patronId's and returns them
         String patronsList = node.reservationHeap==null?"-1":node.reservationHeap.printHeap();
 
         RedBlackTreeNode movedUpNode;
-        String deletedNodeColor;
+        byte deletedNodeColor;
 
         // If the node has one or zero child
         if (node.left == null || node.right == null) {
           movedUpNode = deleteZeroOrOneChildNode(node);
           deletedNodeColor = node.color;
-          if(movedUpNode!=null && movedUpNode.color.equals(RED)){ // if moved up node color is red, simply recolor it to black
-            movedUpNode.color = BLACK;
+          if(movedUpNode!=null && movedUpNode.color == RED){ // if moved up node color is red, simply recolor it to black
+            recolor(movedUpNode, BLACK);
+            updateColorFlips();
             return patronsList;
           }
         }
@@ -325,13 +746,14 @@ class RedBlackTree {
 
           // Copy the data and color remains same
           clone(node,inOrderPredecessor);
+          catalogIndex.moved(node); // the predecessor's book now lives in node
 
           // The predecessor is deleted
           movedUpNode = deleteZeroOrOneChildNode(inOrderPredecessor);
           deletedNodeColor = inOrderPredecessor.color;
         }
 
-        if (deletedNodeColor.equals(BLACK)) {
+        if (deletedNodeColor == BLACK) {
           fixRedBlackPropertiesAfterDelete(movedUpNode);
 
           // The temporary NIL node is removed
@@ -339,19 +761,21 @@ class RedBlackTree {
             replaceRBTParentsChild(movedUpNode.parent, movedUpNode, null);
           }
         }
+        updateColorFlips(); // count the color flips done by the fix-up
         return patronsList;
     }
     // function to copy all the contents of one node to another (called when inorder successor needs to be deleted)
+    // node1 takes over node2's bookId, so node2's color is what node1's color is compared against when counting flips
+    // node1 stays where it is, so its subtree size does not change (node2 is removed after, which updates the sizes)
     public void clone(RedBlackTreeNode node1, RedBlackTreeNode node2){
-        node1.bookId=node2.bookId;
-        node1.bookName=node2.bookName;
-        node1.authorName=node2.authorName;
-        node1.availabilityStatus=node2.availabilityStatus;
-        node1.borrowedBy=node2.borrowedBy;
-        node1.reservationHeap=node2.reservationHeap;
+        rememberColor(node1,node2.color);
+        node1.copyBook(node2);
     }
 
+    // the node is removed from the subtree of all its ancestors, so their subtree sizes go down by one
     public RedBlackTreeNode deleteZeroOrOneChildNode(RedBlackTreeNode node) {
+        for(RedBlackTreeNode ancestor=node.parent;ancestor!=null;ancestor=ancestor.parent) ancestor.subtreeSize--;
+
         // Replace it with left child if the node has only left child
         if (node.left != null) {
           replaceRBTParentsChild(node.parent, node, node.left);
@@ -366,7 +790,7 @@ class RedBlackTree {
 
         // If node is red and has no children remove it else if it's black replace it by nil
         else {
-          RedBlackTreeNode newChild = node.color.equals(BLACK) ? new NilNode() : null;
+          RedBlackTreeNode newChild = node.color == BLACK ? new NilNode() : null;
           replaceRBTParentsChild(node.parent, node, newChild);
           return newChild;
         }
@@ -379,18 +803,18 @@ class RedBlackTree {
         RedBlackTreeNode sibling = getRBTNodeSibling(node);
 
         // Red sibling
-        if (sibling.color.equals(RED)) {
+        if (sibling.color == RED) {
           lookafterRedChild(node, sibling);
           sibling = getRBTNodeSibling(node);
         }
 
         // Two black children of black sibling
         if (checkNotRed(sibling.left) && checkNotRed(sibling.right)) {
-          sibling.color = RED;
+          recolor(sibling, RED);
 
           // Black sibling: two black children & red parent
-          if (node.parent.color.equals(RED)) {
-            node.parent.color = BLACK;
+          if (node.parent.color == RED) {
+            recolor(node.parent, BLACK);
           }
 
           // Black sibling: two black children & black parent
@@ -407,8 +831,8 @@ class RedBlackTree {
 
     public void lookafterRedChild(RedBlackTreeNode node, RedBlackTreeNode sibling) {
         // recolor
-        sibling.color = BLACK;
-        node.parent.color = RED;
+        recolor(sibling, BLACK);
+        recolor(node.parent, RED);
 
         // rotate
         if (node == node.parent.left) {
@@ -423,25 +847,25 @@ class RedBlackTree {
 
         // Recolor sibling and its child, and rotate around sibling
         if ((nodeIsLeftChild && checkNotRed(sibling.right)) || (nodeIsLeftChild && !checkNotRed(sibling.right) && !checkNotRed(sibling.left))) {
-          sibling.left.color = BLACK;
-          sibling.color = RED;
+          recolor(sibling.left, BLACK);
+          recolor(sibling, RED);
           rightRotate(sibling);
           sibling = node.parent.right;
         } else if ((!nodeIsLeftChild && checkNotRed(sibling.left)) || (!nodeIsLeftChild && !checkNotRed(sibling.left) && !checkNotRed(sibling.right))) {
-          sibling.right.color = BLACK;
-          sibling.color = RED;
+          recolor(sibling.right, BLACK);
+          recolor(sibling, RED);
           leftRotate(sibling);
           sibling = node.parent.left;
         }
 
         // Rotate around parent and recolor sibling, parent, sibling's child
-        sibling.color = node.parent.color;
-        node.parent.color = BLACK;
+        recolor(sibling, node.parent.color);
+        recolor(node.parent, BLACK);
         if (nodeIsLeftChild) {
-          sibling.right.color = BLACK;
+          recolor(sibling.right, BLACK);
           leftRotate(node.parent);
         } else {
-          sibling.left.color = BLACK;
+          recolor(sibling.left, BLACK);
           rightRotate(node.parent);
         }
     }
@@ -459,14 +883,15 @@ class RedBlackTree {
     }
 
     public boolean checkNotRed(RedBlackTreeNode node) {
-      return node == null || node.color.equals(BLACK);
+      return node == null || node.color == BLACK;
     }
 
     // NilNode class for temporary purpose in deletion algorithm (when deleted node is black leaf, we get NilNode)
     public class NilNode extends RedBlackTreeNode {
         private NilNode() {
-          super(-1,"","","");
+          super(-1,false);
           this.color = BLACK;
+          this.subtreeSize = 0;
         }
     }
 
@@ -487,8 +912,53 @@ class RedBlackTree {
         }
     }
 
+    // function which collects the shape of the tree (height, black height, rotations, reservation heap sizes) into stats
+    public void readStats(LibraryStats.TreeStats stats){
+        stats.books=size();
+        stats.height=height();
+        stats.blackHeight=blackHeight();
+        stats.leftRotations=leftRotations;
+        stats.rightRotations=rightRotations;
+        stats.colorFlips=colorFlipCount();
+        stats.reservationSizes=reservationSizes();
+    }
+
+    // function to find the height of the tree (number of nodes on the longest path from the root to a leaf)
+    public int height(){
+        return height(root);
+    }
+
+    private int height(RedBlackTreeNode node){
+        if(node==null) return 0;
+        return 1+Math.max(height(node.left),height(node.right));
+    }
+
+    // function to find the black height of the tree (number of black nodes on a path from the root to a leaf,
+    // which is the same for every path of a valid red black tree)
+    public int blackHeight(){
+        int blackHeight=0;
+        for(RedBlackTreeNode node=root;node!=null;node=node.left){
+            if(node.color==BLACK) blackHeight++;
+        }
+        return blackHeight;
+    }
+
+    // function to count the books by the size of their reservation heap: sizes[0] counts books without reservations,
+    // sizes[i] (i>0) the books with 2^(i-1) to 2^i-1 reservations
+    public long[] reservationSizes(){
+        long[] sizes=new long[33];
+        TreeCursor cursor=new TreeCursor(root,Integer.MIN_VALUE,Integer.MAX_VALUE); // no parent pointers, so it works on a PersistentTree too
+        while(cursor.hasNext()){
+            RedBlackTreeNode node=cursor.next();
+            int heapSize=node.reservationHeap==null?0:node.reservationHeap.size();
+            sizes[32-Integer.numberOfLeadingZeros(heapSize)]++;
+        }
+        return sizes;
+    }
+
     // rotate left function
     public void leftRotate(RedBlackTreeNode node) {
+        leftRotations++;
         RedBlackTreeNode parent = node.parent;
         RedBlackTreeNode rightChild = node.right;
 
@@ -501,10 +971,13 @@ class RedBlackTree {
         node.parent = rightChild;
 
         replaceRBTParentsChild(parent, node, rightChild);
+        rightChild.subtreeSize = node.subtreeSize; // rightChild takes over the whole subtree
+        updateSize(node);
     }
 
     // rotate right function
     public void rightRotate(RedBlackTreeNode node) {
+        rightRotations++;
         RedBlackTreeNode parent = node.parent;
         RedBlackTreeNode leftChild = node.left;
 
@@ -517,287 +990,4153 @@ class RedBlackTree {
         node.parent = leftChild;
 
         replaceRBTParentsChild(parent, node, leftChild);
+        leftChild.subtreeSize = node.subtreeSize; // leftChild takes over the whole subtree
+        updateSize(node);
     }
 }
 
-//MinHeapNode class which stores information about patronId, patronPriority and timestamp 
+// BPlusTree class, an index of the books for scan heavy workloads (--index=bptree)
+// the books are kept in the leaves, up to FANOUT per leaf with their bookIds in an int array next to the records, and the
+// leaves are linked both ways in bookId order: a search reads a few contiguous arrays instead of following a pointer
+// per book, and a range scan walks along the leaves without going back up the tree
+// an inner node has up to FANOUT children: keys[i] (i>0) is a lower bound of the bookIds under children[i] and greater
+// than every bookId under children[i-1], counts[i] is the number of books under children[i] for the rank queries
+// every node but the root is at least half full: a full node is split in two by an insert, and a node which falls below
+// half on a delete takes an entry from a neighbour or is merged with it
+// a B+ tree has no colors, so the color flip count stays 0, and its statistics are the height in levels and no rotations
+
+class BPlusTree implements BookIndex {
+    static final int FANOUT=64; // the bookIds of a node fill 4 cache lines
+    static final int MIN_FILL=FANOUT/2;
+
+    // Node class for both kinds of nodes: a leaf has books, an inner node children and counts
+    static final class Node {
+        final int[] keys=new int[FANOUT];
+        final BookRecord[] books;
+        final Node[] children;
+        final int[] counts;
+        int size; // books of a leaf, children of an inner node
+        Node previous; // neighbouring leaves
+        Node next;
+
+        Node(boolean leaf){
+            books=leaf?new BookRecord[FANOUT]:null;
+            children=leaf?null:new Node[FANOUT];
+            counts=leaf?null:new int[FANOUT];
+        }
+
+        boolean isLeaf(){
+            return books!=null;
+        }
 
-class MinHeapNode{
-    int patronId;
-    int patronPriority;
-    long timestamp;
-    public MinHeapNode(int patronId,int patronPriority, long timestamp){
-        this.patronId=patronId;
-        this.patronPriority=patronPriority;
-        this.timestamp=timestamp;
+        // function to get the number of books under the node
+        int count(){
+            if(isLeaf()) return size;
+            int count=0;
+            for(int i=0;i<size;++i) count+=counts[i];
+            return count;
+        }
     }
-}
 
-// Min heap class for creating reservations for book based on patron priority and timestamps order
+    int reservationLimit=0; // maximum number of reservations per book, 0 means no limit
+    final CatalogIndex catalogIndex=new CatalogIndex();
+    final PatronIndex patronIndex=new PatronIndex();
+    final BookStrings strings=new BookStrings(true);
+    Node root=new Node(true);
+    int size=0;
+    int height=1; // number of levels, the leaves included
 
-class MinHeap {
-    private MinHeapNode[] heap; // array of min heap nodes ordered by patron priority and timestamp
-    private int size;
-    private int capacity;
-    void swap(int i,int j){ // swap function to bubble up or down the heap
-        MinHeapNode temp=heap[i];
-        heap[i]=heap[j];
-        heap[j]=temp;
+    public int size(){
+        return size;
     }
-    void heapify(int index){ // heapify function to preserve min heap property
-        int smallest=index;
-        int left=2*index+1;
-        int right=2*index+2;
-        if(left<size && (heap[left].patronPriority<heap[smallest].patronPriority || (heap[left].patronPriority==heap[smallest].patronPriority && heap[left].timestamp<heap[smallest].timestamp))) smallest=left;
-        if(right<size && (heap[right].patronPriority<heap[smallest].patronPriority || (heap[right].patronPriority==heap[smallest].patronPriority && heap[right].timestamp<heap[smallest].timestamp))) smallest=right;
-        if(smallest!=index){
-            swap(index,smallest); // swap the parent with child which has lower patron priority or lesser timestamp for breaking ties
-            heapify(smallest);
-        }
-    }
-    MinHeap(int capacity) {
-        this.heap=new MinHeapNode[capacity]; // restrict the reservation heap limit to 20 (capacity = 20)
-        this.size=0;
-        this.capacity=capacity;
+
+    public int reservationLimit(){
+        return reservationLimit;
     }
 
-    // function to remove minimum element from heap and heapify remaining elements
-    MinHeapNode removeMin() {
-        if(size==0) return null;
-        MinHeapNode minNode=heap[0];
-        swap(0,size-1);
-        size--;
-        heapify(0);
-        return minNode;
+    public CatalogIndex catalogIndex(){
+        return catalogIndex;
+    }
 
+    public PatronIndex patronIndex(){
+        return patronIndex;
     }
 
-    // function to insert min heap node into min heap
-    void insert(MinHeapNode newNode) {
-        if(size==capacity) return;
-        heap[size]=newNode;
-        size++;
-        int i=size-1;
-        while(i>=0){ // bubble up heapify (go from insert point to root and swap if child is lesser than parent)
-            int pIndex=(i-1)/2;
-            MinHeapNode parent=heap[pIndex];
-            MinHeapNode child=heap[i];
-            if(parent.patronPriority>child.patronPriority){
-                swap(pIndex,i);
-                i=pIndex;
-            }
-            else if(parent.patronPriority==child.patronPriority && parent.timestamp>child.timestamp){
-                swap(pIndex,i);
-                i=pIndex;
-            }
-            else break;
+    // a B+ tree has no colors to flip
+    public int colorFlipCount(){
+        return 0;
+    }
+
+    // function to find the first position of a leaf whose bookId is not less than bookId (size if there is none)
+    static int leafIndex(Node leaf, int bookId){
+        int low=0;
+        int high=leaf.size;
+        while(low<high){
+            int mid=(low+high)>>>1;
+            if(leaf.keys[mid]<bookId) low=mid+1;
+            else high=mid;
         }
+        return low;
     }
-    // return the contents of patronId's in heap 
-    String printHeap(){
-        StringBuilder sb=new StringBuilder();
-        sb.append("[");
-        for(int i=0;i<size;++i){
-          sb.append(heap[i].patronId);
-          if(i!=size-1) sb.append(",");
+
+    // function to find the child of an inner node whose range holds bookId
+    static int childIndex(Node node, int bookId){
+        int low=1;
+        int high=node.size;
+        while(low<high){
+            int mid=(low+high)>>>1;
+            if(node.keys[mid]<=bookId) low=mid+1;
+            else high=mid;
         }
-        sb.append("]");
-        return sb.toString();
+        return low-1;
     }
-}
-// main class - start point of program
-public class gatorLibrary {
-    static RedBlackTree rbTree=new RedBlackTree(); // create red black tree instance
-    static List<String>outputData=new ArrayList<>(); // outputData arraylist which keeps track of the output after each operation
-    static boolean isTerminate=false; // isTerminate flag for quit check
-    // main function
-    public static void main(String[] args) {
-        try {
-            String inputFileName=args[0]; // get the input file name from command line
-            int inlen=inputFileName.length();
-            String outputFileName=inputFileName.substring(0,inlen-4)+"_output_file.txt"; // output file name would be concatenation of input file name + "_output_file.txt"
-            FileReader reader = new FileReader(inputFileName); 
-            BufferedReader bufferedReader = new BufferedReader(reader);
-
-            String line;
-            List<String>inputData=new ArrayList<>();
-
-            while ((line = bufferedReader.readLine()) != null) { // reading input text file and adding data to inputData list
-                inputData.add(line);
-            }
-            reader.close();
-            // for every input in inputData arraylist, identify the operation whether it is print or insert or delete and map to appropriate function using switch case
-            for(String input:inputData){
-                if(isTerminate) break;
-                String operation = input.substring(0,input.indexOf("("));
-                switch(operation){
-                    case "PrintBook":
-                        printBook(input);
-                        break;
-                    case "PrintBooks":
-                        printBooks(input);
-                        break;
-                    case "InsertBook":
-                        insertBook(input);
-                        break;
-                    case "BorrowBook":
-                        borrowBook(input);
-                        break;
-                    case "ReturnBook":
-                        returnBook(input);
-                        break;
-                    case "DeleteBook":
-                        deleteBook(input);
-                        break;
-                    case "FindClosestBook":
-                        findClosestBook(input);
-                        break;
-                    case "ColorFlipCount":
-                        colorFlipCount();
-                        break;
-                    case "Quit":
-                        quit();
-                        break;
 
-                }
-            }
-            writeToFile(outputFileName, outputData); // write the outputData arraylist content into output text file
+    // function to find the leaf whose range holds bookId
+    private Node leafFor(int bookId){
+        Node node=root;
+        while(!node.isLeaf()) node=node.children[childIndex(node,bookId)];
+        return node;
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    public BookRecord search(int bookId){
+        Node leaf=leafFor(bookId);
+        int i=leafIndex(leaf,bookId);
+        return i<leaf.size && leaf.keys[i]==bookId?leaf.books[i]:null;
+    }
 
+    // the sizes and keys it reads are always inside the arrays, and the descent stops after more levels than a tree can have
+    public boolean searchBounded(int bookId){
+        Node node=root;
+        for(int level=0;level<64 && !node.isLeaf();++level) node=node.children[childIndex(node,bookId)];
+        int i=leafIndex(node,bookId);
+        return i<node.size && node.keys[i]==bookId;
     }
-    // function to write the output data arraylist to a text file
-    public static void writeToFile(String filename, List<String>list){
-        try {
-            FileWriter writer = new FileWriter(filename, true);
-            BufferedWriter bufferedWriter = new BufferedWriter(writer);
-            for(String str:list){
-                bufferedWriter.write(str);
-                bufferedWriter.newLine();
-            }
-            bufferedWriter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+
+    // function to find the book of rank k (1 for the smallest bookId), null if k is out of range
+    public BookRecord select(int k){
+        if(k<1 || k>size) return null;
+        Node node=root;
+        while(!node.isLeaf()){
+            int i=0;
+            while(k>node.counts[i]) k-=node.counts[i++];
+            node=node.children[i];
         }
+        return node.books[k-1];
     }
-    // invokes the search(bookId) function on red black tree instance and outputs the data
-    public static void printBook(String input){
-        int bookId=Integer.parseInt(input.substring(input.indexOf("(") + 1, input.indexOf(")")));
-        RedBlackTreeNode node = rbTree.search(bookId);
-        if(node==null){
-            outputData.add(String.format("Book %s not found in the Library",bookId)); // if node not found, output book not found
+
+    // function to count the books with bookId less than the given bookId
+    public int countLess(int bookId){
+        int count=0;
+        Node node=root;
+        while(!node.isLeaf()){
+            int child=childIndex(node,bookId);
+            for(int i=0;i<child;++i) count+=node.counts[i];
+            node=node.children[child];
         }
-        else{ // if node is found, output it's data
-            outputData.add(String.format("BookID = %d",node.bookId));
-            outputData.add(String.format("Title = \"%s\"",node.bookName));
-            outputData.add(String.format("Author = \"%s\"",node.authorName));
-            outputData.add(String.format("Availability = \"%s\"",node.availabilityStatus));
-            outputData.add("BorrowedBy = "+(node.borrowedBy==-1?"None":node.borrowedBy));
-            String reservationList = node.reservationHeap==null?"[]":node.reservationHeap.printHeap();
-            outputData.add(String.format("Reservations = %s",reservationList));
+        return count+leafIndex(node,bookId);
+    }
+
+    // function to find the book with the largest bookId less than or equal to given bookId (null if there is none)
+    public BookRecord floor(int bookId){
+        Node leaf=leafFor(bookId);
+        int i=leafIndex(leaf,bookId);
+        if(i<leaf.size && leaf.keys[i]==bookId) return leaf.books[i];
+        if(i>0) return leaf.books[i-1];
+        return leaf.previous==null?null:leaf.previous.books[leaf.previous.size-1];
+    }
+
+    // function to find the book with the smallest bookId greater than or equal to given bookId (null if there is none)
+    public BookRecord ceiling(int bookId){
+        Node leaf=leafFor(bookId);
+        int i=leafIndex(leaf,bookId);
+        if(i<leaf.size) return leaf.books[i];
+        return leaf.next==null?null:leaf.next.books[0];
+    }
+
+    // the scan starts at the ceiling of lowBookId and follows the links of the leaves
+    public int rangeSearch(int lowBookId, int highBookId, int limit, BookVisitor visitor){
+        if(lowBookId>highBookId) return 0;
+        Node leaf=leafFor(lowBookId);
+        int i=leafIndex(leaf,lowBookId);
+        int count=0;
+        for(;leaf!=null;leaf=leaf.next,i=0){
+            for(;i<leaf.size;++i){
+                if(count==limit || leaf.keys[i]>highBookId) return count;
+                visitor.visit(leaf.books[i]);
+                count++;
+            }
         }
-        outputData.add("");
+        return count;
+    }
 
+    // function to insert a book, an insert of a bookId which exists already is ignored
+    public void insert(int bookId, String bookName, String authorName, boolean available){
+        if(search(bookId)!=null) return;
+        BookRecord book=new BookRecord(bookId,bookName,authorName,available,strings);
+        Node sibling=add(root,book);
+        size++;
+        catalogIndex.add(book);
+        if(sibling==null) return;
+        // the root was split, the tree grows by a level
+        Node newRoot=new Node(false);
+        newRoot.keys[0]=root.keys[0];
+        newRoot.children[0]=root;
+        newRoot.counts[0]=root.count();
+        newRoot.keys[1]=sibling.keys[0];
+        newRoot.children[1]=sibling;
+        newRoot.counts[1]=sibling.count();
+        newRoot.size=2;
+        root=newRoot;
+        height++;
     }
-    // invokes the rangeSearch(lowBookId,highBookId) function on red black tree instance and outputs the data
-    public static void printBooks(String input){
-        String contents = input.substring(input.indexOf("(") + 1, input.indexOf(")"));
-        String[] parts = contents.split(",\\s*");
-        int lowBookId=Integer.parseInt(parts[0]);
-        int highBookId=Integer.parseInt(parts[1]);
-        List<RedBlackTreeNode>arr=rbTree.rangeSearch(lowBookId,highBookId);
-        for(RedBlackTreeNode node:arr){
-            outputData.add(String.format("BookID = %d",node.bookId));
-            outputData.add(String.format("Title = \"%s\"",node.bookName));
-            outputData.add(String.format("Author = \"%s\"",node.authorName));
-            outputData.add(String.format("Availability = \"%s\"",node.availabilityStatus));
-            outputData.add("BorrowedBy = "+(node.borrowedBy==-1?"None":node.borrowedBy));
-            String reservationList = node.reservationHeap==null?"[]":node.reservationHeap.printHeap();
-            outputData.add(String.format("Reservations = %s",reservationList));
-            outputData.add("");
-        }
-
-    }
-    // invokes the insert(bookId,bookName,authorName,availabilityStatus) function on red black tree instance
-    public static void insertBook(String input){
-        String contents = input.substring(input.indexOf("(") + 1, input.indexOf(")"));
-        String[] parts = contents.split(",\\s*");
-        int bookId = Integer.parseInt(parts[0]);
-        String bookName=parts[1].substring(1,parts[1].length()-1),authorName=parts[2].substring(1,parts[2].length()-1),availabilityStatus=parts[3].substring(1,parts[3].length()-1);
-        rbTree.insert(bookId,bookName,authorName,availabilityStatus);
-        rbTree.updateColorFlips(); //  after insert operation, call updateColorFlips() function on red black tree to count color flip changes
-    }
-    // invokes the borrowBook(patronId,bookId,patronPriority) function on red black tree instance 
-    public static void borrowBook(String input){
-        String contents = input.substring(input.indexOf("(") + 1, input.indexOf(")"));
-        String[] parts = contents.split(",\\s*");
-        int patronId=Integer.parseInt(parts[0]);
-        int bookId=Integer.parseInt(parts[1]);
-        int patronPriority=Integer.parseInt(parts[2]);
-        boolean isBorrowSuccess = rbTree.borrowBook(patronId,bookId,patronPriority);
-        if(isBorrowSuccess) outputData.add(String.format("Book %d Borrowed by Patron %d",bookId,patronId)); // if borrow is successful, output borrowed
-        else outputData.add(String.format("Book %d Reserved by Patron %d",bookId,patronId)); // if borrow is unsuccessful, output reserved
-        outputData.add("");
+
+    // function which adds a book under node, returns the new right neighbour of node if node was split to make room
+    private Node add(Node node, BookRecord book){
+        if(node.isLeaf()){
+            int i=leafIndex(node,book.bookId);
+            Node sibling=node.size==FANOUT?split(node):null;
+            if(i>node.size) insertBook(sibling,i-node.size,book);
+            else insertBook(node,i,book);
+            return sibling;
+        }
+        int child=childIndex(node,book.bookId);
+        Node childSibling=add(node.children[child],book);
+        node.counts[child]++;
+        if(childSibling==null) return null;
+        int moved=childSibling.count();
+        node.counts[child]-=moved;
+        Node sibling=node.size==FANOUT?split(node):null;
+        if(child+1>node.size) insertChild(sibling,child+1-node.size,childSibling.keys[0],childSibling,moved);
+        else insertChild(node,child+1,childSibling.keys[0],childSibling,moved);
+        return sibling;
     }
-    // invokes the returnBook(patronId,bookId) function on red black tree instance 
-    //and outputs details about allocation of that book to first patron in heap if reservation exists
-    public static void returnBook(String input){
-        String contents = input.substring(input.indexOf("(") + 1, input.indexOf(")"));
-        String[] parts = contents.split(",\\s*");
-        int patronId=Integer.parseInt(parts[0]);
-        int bookId=Integer.parseInt(parts[1]);
-        int patronId2 = rbTree.returnBook(patronId,bookId);
-        outputData.add(String.format("Book %d Returned by Patron %d",bookId,patronId));
-        if(patronId2!=-1) {
-          outputData.add("");
-          outputData.add(String.format("Book %d Allotted to Patron %d",bookId,patronId2));
+
+    // function which moves the upper half of a full node to a new right neighbour and returns it
+    // keys[0] of the new node is the lower bound of its first child, which its parent takes as its separator
+    private Node split(Node node){
+        Node sibling=new Node(node.isLeaf());
+        int moved=node.size-MIN_FILL;
+        System.arraycopy(node.keys,MIN_FILL,sibling.keys,0,moved);
+        if(node.isLeaf()){
+            System.arraycopy(node.books,MIN_FILL,sibling.books,0,moved);
+            Arrays.fill(node.books,MIN_FILL,node.size,null);
+            sibling.next=node.next;
+            sibling.previous=node;
+            if(node.next!=null) node.next.previous=sibling;
+            node.next=sibling;
         }
-        outputData.add("");
+        else{
+            System.arraycopy(node.children,MIN_FILL,sibling.children,0,moved);
+            System.arraycopy(node.counts,MIN_FILL,sibling.counts,0,moved);
+            Arrays.fill(node.children,MIN_FILL,node.size,null);
+        }
+        sibling.size=moved;
+        node.size=MIN_FILL;
+        return sibling;
     }
-    // invokes the delete(bookId) function on red black tree instance and outputs the patron list if any reservations exist for it
-    public static void deleteBook(String input){
-      int bookId=Integer.parseInt(input.substring(input.indexOf("(") + 1, input.indexOf(")")));
-      String patronsList = rbTree.delete(bookId);
-      if(patronsList.equals("-1")){
-        outputData.add(String.format("Book %d is no longer available.",bookId));
+
+    private static void insertBook(Node leaf, int i, BookRecord book){
+        System.arraycopy(leaf.keys,i,leaf.keys,i+1,leaf.size-i);
+        System.arraycopy(leaf.books,i,leaf.books,i+1,leaf.size-i);
+        leaf.keys[i]=book.bookId;
+        leaf.books[i]=book;
+        leaf.size++;
+    }
+
+    private static void insertChild(Node node, int i, int key, Node child, int count){
+        System.arraycopy(node.keys,i,node.keys,i+1,node.size-i);
+        System.arraycopy(node.children,i,node.children,i+1,node.size-i);
+        System.arraycopy(node.counts,i,node.counts,i+1,node.size-i);
+        node.keys[i]=key;
+        node.children[i]=child;
+        node.counts[i]=count;
+        node.size++;
+    }
+
+    // function to remove the entry at position i of a node
+    private static void removeAt(Node node, int i){
+        int tail=node.size-i-1;
+        System.arraycopy(node.keys,i+1,node.keys,i,tail);
+        if(node.isLeaf()){
+            System.arraycopy(node.books,i+1,node.books,i,tail);
+            node.books[node.size-1]=null;
+        }
+        else{
+            System.arraycopy(node.children,i+1,node.children,i,tail);
+            System.arraycopy(node.counts,i+1,node.counts,i,tail);
+            node.children[node.size-1]=null;
+        }
+        node.size--;
+    }
+
+    // Function to delete, returns the patrons whose reservations were cancelled like RedBlackTree.delete
+    public String delete(int bookId){
+        BookRecord book=search(bookId);
+        if(book==null) return "-1";
+        catalogIndex.remove(book);
+        patronIndex.removeBook(book);
+        strings.release(book);
+        remove(root,bookId);
+        size--;
+        while(!root.isLeaf() && root.size==1){ // the root has a single child left, the tree shrinks by a level
+            root=root.children[0];
+            height--;
+        }
+        return book.reservationHeap==null?"-1":book.reservationHeap.printHeap();
+    }
+
+    // function which removes bookId from under node and refills the child it was removed from if it fell below half
+    private void remove(Node node, int bookId){
+        if(node.isLeaf()){
+            removeAt(node,leafIndex(node,bookId));
+            return;
+        }
+        int child=childIndex(node,bookId);
+        remove(node.children[child],bookId);
+        node.counts[child]--;
+        if(node.children[child].size<MIN_FILL && node.size>1) refill(node,child);
+    }
+
+    // function which refills children[child] of node: if it fits into one node with a neighbour the two are merged,
+    // otherwise the neighbour has more than half and gives it one entry
+    private void refill(Node node, int child){
+        int left=child>0?child-1:child; // the neighbours are children[left] and children[left+1]
+        Node leftNode=node.children[left];
+        Node rightNode=node.children[left+1];
+        if(leftNode.size+rightNode.size<=FANOUT) merge(node,left);
+        else if(leftNode.size<rightNode.size) moveLeft(node,left);
+        else moveRight(node,left);
+    }
+
+    // function which merges children[left+1] of node into children[left]
+    private void merge(Node node, int left){
+        Node leftNode=node.children[left];
+        Node rightNode=node.children[left+1];
+        int n=leftNode.size;
+        int m=rightNode.size;
+        if(leftNode.isLeaf()){
+            System.arraycopy(rightNode.books,0,leftNode.books,n,m);
+            leftNode.next=rightNode.next;
+            if(rightNode.next!=null) rightNode.next.previous=leftNode;
+        }
+        else{
+            rightNode.keys[0]=node.keys[left+1]; // the separator is the lower bound of the first child of rightNode
+            System.arraycopy(rightNode.children,0,leftNode.children,n,m);
+            System.arraycopy(rightNode.counts,0,leftNode.counts,n,m);
+        }
+        System.arraycopy(rightNode.keys,0,leftNode.keys,n,m);
+        leftNode.size=n+m;
+        node.counts[left]+=node.counts[left+1];
+        removeAt(node,left+1);
+    }
+
+    // function which moves the first entry of children[left+1] of node to the end of children[left]
+    private void moveLeft(Node node, int left){
+        Node leftNode=node.children[left];
+        Node rightNode=node.children[left+1];
+        int count;
+        if(leftNode.isLeaf()){
+            insertBook(leftNode,leftNode.size,rightNode.books[0]);
+            count=1;
+        }
+        else{
+            count=rightNode.counts[0];
+            insertChild(leftNode,leftNode.size,node.keys[left+1],rightNode.children[0],count);
+        }
+        removeAt(rightNode,0);
+        node.keys[left+1]=rightNode.keys[0];
+        node.counts[left]+=count;
+        node.counts[left+1]-=count;
+    }
+
+    // function which moves the last entry of children[left] of node to the front of children[left+1]
+    private void moveRight(Node node, int left){
+        Node leftNode=node.children[left];
+        Node rightNode=node.children[left+1];
+        int last=leftNode.size-1;
+        int count;
+        if(leftNode.isLeaf()){
+            insertBook(rightNode,0,leftNode.books[last]);
+            count=1;
+        }
+        else{
+            rightNode.keys[0]=node.keys[left+1]; // its first child becomes the second one and keeps its lower bound
+            count=leftNode.counts[last];
+            insertChild(rightNode,0,leftNode.keys[last],leftNode.children[last],count);
+        }
+        node.keys[left+1]=leftNode.keys[last];
+        removeAt(leftNode,last);
+        node.counts[left]-=count;
+        node.counts[left+1]+=count;
+    }
+
+    // function to insert a batch of books at once, like RedBlackTree.bulkInsert the books are merged with the existing
+    // ones in bookId order and the tree is rebuilt in O(n+m), unless the batch is small compared to the tree
+    // bookIds which already exist or repeat in the batch are ignored
+    public void bulkInsert(InsertBatch batch){
+        int count=batch.size();
+        if(count==0) return;
+        long[] order=batch.sortedOrder(); // bookId in the high 32 bits and batch index in the low 32 bits, sorted
+        if((long)count*(33-Integer.numberOfLeadingZeros(size))<size){
+            for(long entry:order){
+                int index=(int)entry;
+                insert(batch.bookIds[index],batch.bookNames[index],batch.authorNames[index],batch.available[index]);
+            }
+            return;
+        }
+        BookRecord[] books=new BookRecord[size+count];
+        int merged=0;
+        int next=0; // next batch entry in order
+        Node leaf=root;
+        while(!leaf.isLeaf()) leaf=leaf.children[0];
+        int i=0; // next book of leaf
+        while(leaf!=null || next<count){
+            if(leaf!=null && i==leaf.size){
+                leaf=leaf.next;
+                i=0;
+                continue;
+            }
+            int batchBookId=next<count?(int)(order[next]>>32):0;
+            if(leaf!=null && (next==count || leaf.keys[i]<=batchBookId)){
+                if(next<count && leaf.keys[i]==batchBookId) next++; // the book exists already
+                books[merged++]=leaf.books[i++];
+            }
+            else{
+                int index=(int)order[next++];
+                if(merged==0 || books[merged-1].bookId!=batchBookId){
+                    books[merged]=new BookRecord(batchBookId,batch.bookNames[index],batch.authorNames[index],batch.available[index],strings);
+                    catalogIndex.add(books[merged++]);
+                }
+            }
+        }
+        load(books,0,merged);
+    }
+
+    // function which makes the tree out of books[from..to) sorted by bookId, which must not be in another index anymore
+    public void build(BookRecord[] books, int from, int to){
+        load(books,from,to);
+        for(int i=from;i<to;++i){
+            strings.adopt(books[i]);
+            catalogIndex.add(books[i]);
+            patronIndex.addBook(books[i]);
+        }
+    }
+
+    // function which replaces the tree by one made of books[from..to) sorted by bookId: the books are spread evenly over
+    // as few leaves as can hold them and so are the nodes of every level over the level above, so all nodes are nearly full
+    private void load(BookRecord[] books, int from, int to){
+        int count=to-from;
+        int nodes=Math.max(1,(count+FANOUT-1)/FANOUT);
+        Node[] level=new Node[nodes];
+        int[] levelCounts=new int[nodes];
+        Node previous=null;
+        for(int i=0;i<nodes;++i){
+            int start=from+(int)((long)count*i/nodes);
+            int end=from+(int)((long)count*(i+1)/nodes);
+            Node leaf=new Node(true);
+            for(int j=start;j<end;++j){
+                leaf.keys[j-start]=books[j].bookId;
+                leaf.books[j-start]=books[j];
+            }
+            leaf.size=end-start;
+            leaf.previous=previous;
+            if(previous!=null) previous.next=leaf;
+            previous=leaf;
+            level[i]=leaf;
+            levelCounts[i]=end-start;
+        }
+        height=1;
+        while(nodes>1){
+            int parents=(nodes+FANOUT-1)/FANOUT;
+            Node[] upper=new Node[parents];
+            int[] upperCounts=new int[parents];
+            for(int i=0;i<parents;++i){
+                int start=(int)((long)nodes*i/parents);
+                int end=(int)((long)nodes*(i+1)/parents);
+                Node node=new Node(false);
+                for(int j=start;j<end;++j){
+                    node.keys[j-start]=level[j].keys[0]; // the smallest bookId under level[j]
+                    node.children[j-start]=level[j];
+                    node.counts[j-start]=levelCounts[j];
+                    upperCounts[i]+=levelCounts[j];
+                }
+                node.size=end-start;
+                upper[i]=node;
+            }
+            level=upper;
+            levelCounts=upperCounts;
+            nodes=parents;
+            height++;
+        }
+        root=level[0];
+        size=count;
+    }
+
+    // function which collects the height and the reservation heap sizes into stats, the colors and rotations stay 0
+    public void readStats(LibraryStats.TreeStats stats){
+        stats.books=size;
+        stats.height=height;
+        long[] sizes=new long[33];
+        rangeSearch(Integer.MIN_VALUE,Integer.MAX_VALUE,Integer.MAX_VALUE,node -> {
+            int heapSize=node.reservationHeap==null?0:node.reservationHeap.size();
+            sizes[32-Integer.numberOfLeadingZeros(heapSize)]++;
+        });
+        stats.reservationSizes=sizes;
+    }
+}
+
+// Min heap class for creating reservations for book based on patron priority and timestamps order
+// every reservation is stored as a long key in keys[] with its patronId at the same index in patronIds[]
+// the key packs the patron priority in the high 32 bits and the arrival number of the reservation in the low 32 bits,
+// so comparing keys orders by priority first and breaks ties by arrival order (earlier reservation first)
+// the arrays grow on demand, a limit can be given to reject reservations once that many patrons are waiting
+
+class MinHeap {
+    private long[] keys; // priority and arrival order of every reservation, in heap order
+    private int[] patronIds; // patronId of every reservation, at the same index as its key
+    private int size;
+    private final int limit; // maximum number of reservations, 0 means no limit
+    private int arrivals=0; // arrival number of the next reservation (compared unsigned, so it takes 2^32 reservations on a book to wrap)
+
+    MinHeap(int initialCapacity, int limit) {
+        this.keys=new long[initialCapacity];
+        this.patronIds=new int[initialCapacity];
+        this.size=0;
+        this.limit=limit;
+    }
+
+    // constructor for a heap restored from a snapshot, keys and patronIds are already in heap order
+    MinHeap(long[] keys, int[] patronIds, int size, int arrivals, int limit) {
+        this.keys=keys;
+        this.patronIds=patronIds;
+        this.size=size;
+        this.arrivals=arrivals;
+        this.limit=limit;
+    }
+
+    // function which copies the heap, so a PersistentTree can change a book's reservations without changing older versions
+    MinHeap copy(){
+        return new MinHeap(keys.clone(),patronIds.clone(),size,arrivals,limit);
+    }
+
+    static long key(int patronPriority, int arrival){
+        return ((long)patronPriority<<32)|(arrival&0xFFFFFFFFL);
+    }
+
+    int size(){
+        return size;
+    }
+
+    int arrivals(){
+        return arrivals;
+    }
+
+    long keyAt(int index){
+        return keys[index];
+    }
+
+    int patronIdAt(int index){
+        return patronIds[index];
+    }
+
+    void swap(int i,int j){ // swap function to bubble up or down the heap
+        long tempKey=keys[i];
+        keys[i]=keys[j];
+        keys[j]=tempKey;
+        int tempPatron=patronIds[i];
+        patronIds[i]=patronIds[j];
+        patronIds[j]=tempPatron;
+    }
+
+    void heapify(int index){ // heapify function to preserve min heap property
+        while(true){
+            int smallest=index;
+            int left=2*index+1;
+            int right=2*index+2;
+            if(left<size && keys[left]<keys[smallest]) smallest=left;
+            if(right<size && keys[right]<keys[smallest]) smallest=right;
+            if(smallest==index) return;
+            swap(index,smallest); // swap the parent with child which has lower patron priority or earlier arrival for breaking ties
+            index=smallest;
+        }
+    }
+
+    // function to remove minimum element from heap and heapify remaining elements, returns its patronId (-1 if heap is empty)
+    int removeMin() {
+        if(size==0) return -1;
+        int minPatronId=patronIds[0];
+        swap(0,size-1);
+        size--;
+        heapify(0);
+        return minPatronId;
+    }
+
+    // function to remove all reservations of a patron, returns how many were removed
+    // the other reservations are moved together and the heap is rebuilt bottom up in O(size)
+    int removePatron(int patronId){
+        int kept=0;
+        for(int i=0;i<size;++i){
+            if(patronIds[i]==patronId) continue;
+            keys[kept]=keys[i];
+            patronIds[kept++]=patronIds[i];
+        }
+        int removed=size-kept;
+        if(removed==0) return 0;
+        size=kept;
+        for(int i=size/2-1;i>=0;--i) heapify(i);
+        return removed;
+    }
+
+    // function to insert a reservation into min heap, returns false if the heap is at its limit
+    boolean insert(int patronId, int patronPriority) {
+        if(limit>0 && size>=limit) return false;
+        if(size==keys.length){ // grow the arrays
+            int capacity=Math.max(4,2*size);
+            keys=Arrays.copyOf(keys,capacity);
+            patronIds=Arrays.copyOf(patronIds,capacity);
+        }
+        keys[size]=key(patronPriority,arrivals++);
+        patronIds[size]=patronId;
+        size++;
+        int i=size-1;
+        while(i>0){ // bubble up heapify (go from insert point to root and swap if child is lesser than parent)
+            int pIndex=(i-1)/2;
+            if(keys[pIndex]<=keys[i]) break;
+            swap(pIndex,i);
+            i=pIndex;
+        }
+        return true;
+    }
+
+    // write the contents of patronId's in heap straight to the output
+    void printHeap(OutputWriter out){
+        out.append('[');
+        for(int i=0;i<size;++i){
+          if(i>0) out.append(',');
+          out.append(patronIds[i]);
+        }
+        out.append(']');
+    }
+
+    // return the contents of patronId's in heap 
+    String printHeap(){
+        StringBuilder sb=new StringBuilder();
+        sb.append("[");
+        for(int i=0;i<size;++i){
+          sb.append(patronIds[i]);
+          if(i!=size-1) sb.append(",");
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
+
+// LibrarySnapshot class which saves a book index to a compact binary file and restores it as a red black tree
+// file layout (big endian): magic "GLS1", colorFlips, number of books, then every book in bookId order:
+//   bookId, depth in the tree (byte), flags (byte: 1 = black, 2 = available), borrowedBy,
+//   title and author (length + UTF-8 bytes), number of reservations (-1 if the book never had a reservation heap),
+//   and if there is a heap: its arrival counter and every reservation as patronId + key, in heap array order
+// the in-order sequence with depths gives back exactly the same tree shape and colors, so a restored library
+// continues with the same color flips and the same output as the library that was saved
+// an index which is not a red black tree (BPlusTree), or the books of all shards of a ShardedLibrary, are written in
+// bookId order with the depths and colors of the balanced tree RedBlackTree.buildBalanced makes from them, the restored
+// tree is then turned into that index (or split into shards again)
+// a snapshot is written to <file>.tmp, forced to disk and then renamed over the file, so a crash leaves either the old
+// snapshot or the new one
+
+class LibrarySnapshot {
+    static final int MAGIC=0x474C5331; // "GLS1"
+
+    // function to write the tree to fileName, returns the number of books written
+    // with a command log, the log restarted from the new snapshot is made (and forced) before the snapshot is renamed
+    // into place, and replaces the old log after it, see CommandLog.prepareRestart for what a crash in between leaves
+    static int write(BookIndex index, String fileName, CommandLog log) throws IOException{
+        if(index instanceof RedBlackTree) return write(((RedBlackTree)index).root,null,index.colorFlipCount(),index.size(),fileName,log);
+        BookRecord[] books=new BookRecord[index.size()];
+        int[] count={0};
+        index.rangeSearch(Integer.MIN_VALUE,Integer.MAX_VALUE,Integer.MAX_VALUE,book -> books[count[0]++]=book);
+        return write(books,index.colorFlipCount(),fileName,log);
+    }
+
+    // function to write books sorted by bookId to fileName as a balanced tree, returns the number of books written
+    static int write(BookRecord[] books, int colorFlips, String fileName, CommandLog log) throws IOException{
+        return write(null,books,colorFlips,books.length,fileName,log);
+    }
+
+    // function which writes the tree under root with its own shape, or if books is not null, books as a balanced tree
+    private static int write(RedBlackTreeNode root, BookRecord[] books, int colorFlips, int size, String fileName, CommandLog log) throws IOException{
+        Path temporary=temporaryFile(fileName);
+        try (FileOutputStream file=new FileOutputStream(temporary.toFile());
+             DataOutputStream out=new DataOutputStream(new BufferedOutputStream(file,1<<20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(colorFlips);
+            out.writeInt(size);
+            if(books==null) writeNodes(out,root,0);
+            else writeBalanced(out,books,0,books.length-1,0,RedBlackTree.redLevel(books.length));
+            out.flush();
+            file.getFD().sync();
+        }
+        if(log!=null) log.prepareRestart(fileName);
+        replace(temporary,Paths.get(fileName));
+        if(log!=null) log.finishRestart();
+        return size;
+    }
+
+    // function to get the name a file is written under before it replaces the file
+    static Path temporaryFile(String fileName){
+        return Paths.get(fileName+".tmp");
+    }
+
+    // function which renames temporary over file in one step and forces the directory, so the rename survives a crash
+    static void replace(Path temporary, Path file) throws IOException{
+        Files.move(temporary,file,StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directory=FileChannel.open(file.toAbsolutePath().getParent(),StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // some platforms (Windows) can not open a directory, the rename is left to the file system there
+        }
+    }
+
+    // inorder traversal which writes every node with its depth
+    private static void writeNodes(DataOutputStream out, RedBlackTreeNode node, int depth) throws IOException{
+        if(node==null) return;
+        writeNodes(out,node.left,depth+1);
+        writeBook(out,node,depth,node.color==RedBlackTree.BLACK);
+        writeNodes(out,node.right,depth+1);
+    }
+
+    // function which writes books[low..high] sorted by bookId as the subtree buildBalanced would make of them
+    private static void writeBalanced(DataOutputStream out, BookRecord[] books, int low, int high, int level, int redLevel) throws IOException{
+        if(low>high) return;
+        int mid=(low+high)>>>1;
+        writeBalanced(out,books,low,mid-1,level+1,redLevel);
+        writeBook(out,books[mid],level,level!=redLevel);
+        writeBalanced(out,books,mid+1,high,level+1,redLevel);
+    }
+
+    private static void writeBook(DataOutputStream out, BookRecord node, int depth, boolean black) throws IOException{
+        out.writeInt(node.bookId);
+        out.writeByte(depth);
+        out.writeByte((black?1:0)|(node.available?2:0));
+        out.writeInt(node.borrowedBy);
+        BookStrings.writeTitle(out,node);
+        writeString(out,node.authorName());
+        MinHeap heap=node.reservationHeap;
+        if(heap==null){
+            out.writeInt(-1);
+        }
+        else{
+            out.writeInt(heap.size());
+            out.writeInt(heap.arrivals());
+            for(int i=0;i<heap.size();++i){
+                out.writeInt(heap.patronIdAt(i));
+                out.writeLong(heap.keyAt(i));
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException{
+        byte[] bytes=value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // function to restore an empty tree from fileName, reading the file through memory mapped windows
+    // the nodes come in bookId order with their depths, every node becomes the right child of the closest shallower node
+    // before it and takes the deeper nodes in between as its left subtree, so the tree is linked in one pass
+    static int read(RedBlackTree tree, String fileName) throws IOException{
+        if(tree.root!=null) throw new IllegalStateException("Snapshot can only be restored into an empty library");
+        try (FileChannel channel=FileChannel.open(Paths.get(fileName),StandardOpenOption.READ)) {
+            MappedInput in=new MappedInput(channel);
+            if(in.getInt()!=MAGIC) throw new IOException(fileName+" is not a library snapshot");
+            int colorFlips=in.getInt();
+            int count=in.getInt();
+            RedBlackTreeNode[] rightSpine=new RedBlackTreeNode[128]; // nodes which can still get a right child, by increasing depth
+            int[] spineDepths=new int[128];
+            int top=0;
+            for(int i=0;i<count;++i){
+                int bookId=in.getInt();
+                int depth=in.getByte();
+                int flags=in.getByte();
+                int borrowedBy=in.getInt();
+                String bookName=in.getString();
+                String authorName=in.getString();
+                RedBlackTreeNode node=new RedBlackTreeNode(bookId,bookName,authorName,(flags&2)!=0,tree.strings);
+                node.color=(flags&1)!=0?RedBlackTree.BLACK:RedBlackTree.RED;
+                node.borrowedBy=borrowedBy;
+                int reservations=in.getInt();
+                if(reservations>=0){
+                    int arrivals=in.getInt();
+                    long[] keys=new long[Math.max(4,reservations)];
+                    int[] patronIds=new int[keys.length];
+                    for(int j=0;j<reservations;++j){
+                        patronIds[j]=in.getInt();
+                        keys[j]=in.getLong();
+                    }
+                    node.reservationHeap=new MinHeap(keys,patronIds,reservations,arrivals,tree.reservationLimit);
+                }
+                RedBlackTreeNode left=null;
+                while(top>0 && spineDepths[top-1]>depth){
+                    left=rightSpine[--top]; // its right subtree is complete, so is its size
+                    RedBlackTree.updateSize(left);
+                }
+                node.left=left;
+                if(left!=null) left.parent=node;
+                if(top>0){
+                    rightSpine[top-1].right=node;
+                    node.parent=rightSpine[top-1];
+                }
+                rightSpine[top]=node;
+                spineDepths[top++]=depth;
+                tree.catalogIndex.add(node);
+                tree.patronIndex.addBook(node);
+            }
+            while(top>0) RedBlackTree.updateSize(rightSpine[--top]);
+            tree.root=rightSpine[0];
+            tree.colorFlips=colorFlips;
+            return count;
+        }
+    }
+
+    // MappedInput class which reads a file through memory mapped windows of at most 1GB, moving the window forward as needed
+    static class MappedInput {
+        private static final long WINDOW=1L<<30;
+        private final FileChannel channel;
+        private MappedByteBuffer window;
+        private long windowStart=0;
+
+        MappedInput(FileChannel channel) throws IOException{
+            this.channel=channel;
+            map(0);
+        }
+
+        private void map(long start) throws IOException{
+            windowStart=start;
+            window=channel.map(FileChannel.MapMode.READ_ONLY,start,Math.min(WINDOW,channel.size()-start));
+        }
+
+        // function which makes sure the next n bytes are in the window
+        private void ensure(int n) throws IOException{
+            if(window.remaining()>=n) return;
+            long position=windowStart+window.position();
+            if(channel.size()-position<n) throw new EOFException("Snapshot file is truncated");
+            map(position);
+        }
+
+        int getInt() throws IOException{
+            ensure(4);
+            return window.getInt();
+        }
+
+        long getLong() throws IOException{
+            ensure(8);
+            return window.getLong();
+        }
+
+        int getByte() throws IOException{
+            ensure(1);
+            return window.get();
+        }
+
+        private byte[] scratch=new byte[256];
+
+        String getString() throws IOException{
+            int length=getInt();
+            ensure(length);
+            if(length>scratch.length) scratch=new byte[Math.max(length,2*scratch.length)];
+            window.get(scratch,0,length);
+            return new String(scratch,0,length,StandardCharsets.UTF_8);
+        }
+    }
+}
+
+// CommandLog class, an append-only binary write-ahead log of the commands which change the library
+// the library appends a record for every InsertBook, BorrowBook, ReturnBook, DeleteBook, bulk insert and cancelled
+// reservation right after the change, under the locks the change was made under: the book's lock for a borrow, return
+// or cancel, the write lock of the tree for the others, so the records of one book, and all structural changes, are in
+// the order they were made (changes of different books commute) and a command which failed is never logged
+// a record is its payload length, the CRC32 of the payload and the payload (a type byte and the arguments), so a
+// record torn by a crash is found and cut off when the log is opened
+// group commit: records go to an in-memory buffer and a sync thread writes and forces everything appended so far in
+// one fsync, at most syncMillis after the first record of a batch; while it forces a batch the next one collects, so
+// an fsync is shared by all the commands of that time instead of paid by each of them
+// output which may depend on a record is held back until the record is forced (OutputWriter calls awaitDurable
+// before writing its buffer), so nothing is reported done which a crash can lose
+// the log starts either empty or with a SNAPSHOT record naming the snapshot file its first state is in; a Snapshot
+// command replaces the log with one holding only a SNAPSHOT record of the new file, so the log only holds what came
+// after the last snapshot (the new log is written to <log>.tmp and renamed over the log, see prepareRestart)
+
+class CommandLog {
+    static final byte INSERT=1;
+    static final byte BORROW=2;
+    static final byte RETURN=3;
+    static final byte DELETE=4;
+    static final byte CANCEL_RESERVATIONS=5;
+    static final byte BULK_INSERT=6;
+    static final byte SNAPSHOT=7;
+    private static final int SYNC_BYTES=1<<20; // a batch this big is forced without waiting for syncMillis
+
+    private final String fileName;
+    private FileChannel channel; // replaced by a restart, the sync thread reads it under the lock
+    private final long syncNanos;
+    private final ByteArrayOutputStream recordBytes=new ByteArrayOutputStream(256); // payload of the record being appended
+    private final CRC32 crc=new CRC32();
+    private ByteArrayOutputStream pending=new ByteArrayOutputStream(1<<16); // records appended since the last batch
+    private ByteArrayOutputStream writing=new ByteArrayOutputStream(1<<16); // batch being written by the sync thread
+    private long appendedLsn=0; // bytes appended since the log was opened, the LSN of the end of the last record
+    private long durableLsn=0; // LSN up to which the records are forced to disk
+    private long batchStart; // System.nanoTime() of the first record of the pending batch
+    private boolean syncRequested=false; // someone waits for the pending batch, it is forced right away
+    private boolean closed=false;
+    private IOException failure; // error of the sync thread, every later wait fails with it
+    private final Thread syncThread;
+    private int records; // records in the file when it was opened, without the SNAPSHOT record
+    String snapshotFileName; // snapshot file the log starts from, null if it starts from an empty library
+
+    private CommandLog(String fileName, int syncMillis) throws IOException{
+        this.fileName=fileName;
+        this.syncNanos=syncMillis*1000000L;
+        channel=FileChannel.open(Paths.get(fileName),StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE);
+        syncThread=new Thread(this::syncLoop,"command-log-sync");
+        syncThread.setDaemon(true);
+    }
+
+    // function which opens (or creates) a log, cuts off a torn last record and starts the sync thread
+    static CommandLog open(String fileName, int syncMillis) throws IOException{
+        recover(fileName);
+        CommandLog log=new CommandLog(fileName,syncMillis);
+        long end=log.scan(null);
+        log.channel.truncate(end);
+        log.channel.position(end);
+        log.syncThread.start();
+        return log;
+    }
+
+    // function which tells if the log has a history to replay instead of starting the library from its options
+    boolean hasHistory(){
+        return records>0 || snapshotFileName!=null;
+    }
+
+    // function which applies the records after the SNAPSHOT record to library, returns the number of records applied
+    int replay(Library library) throws IOException{
+        scan(library);
+        return records;
+    }
+
+    // function which reads the valid records of the file, applies them to library if it is not null and returns the
+    // offset where the valid records end
+    private long scan(Library library) throws IOException{
+        records=0;
+        long end=0;
+        try (DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(fileName),1<<16))) {
+            byte[] payload=new byte[256];
+            while(true){
+                int length;
+                try {
+                    length=in.readInt();
+                } catch (EOFException e) {
+                    return end;
+                }
+                if(length<=0 || end+8+length>channel.size()) return end;
+                int checksum=in.readInt();
+                if(length>payload.length) payload=new byte[Math.max(length,2*payload.length)];
+                in.readFully(payload,0,length);
+                crc.reset();
+                crc.update(payload,0,length);
+                if((int)crc.getValue()!=checksum) return end;
+                DataInputStream data=new DataInputStream(new ByteArrayInputStream(payload,0,length));
+                byte type=data.readByte();
+                if(type==SNAPSHOT) snapshotFileName=readString(data);
+                else{
+                    records++;
+                    if(library!=null) apply(library,type,data);
+                }
+                end+=8+length;
+            }
+        }
+    }
+
+    // function which applies one record
+    private static void apply(Library library, byte type, DataInputStream data) throws IOException{
+        switch(type){
+            case INSERT:
+                library.insert(data.readInt(),readString(data),readString(data),data.readBoolean());
+                break;
+            case BORROW:
+                library.borrowBook(data.readInt(),data.readInt(),data.readInt());
+                break;
+            case RETURN:
+                library.returnBook(data.readInt(),data.readInt());
+                break;
+            case DELETE:
+                library.delete(data.readInt());
+                break;
+            case CANCEL_RESERVATIONS:
+                library.cancelReservations(data.readInt(),data.readInt());
+                break;
+            case BULK_INSERT:
+                InsertBatch batch=new InsertBatch();
+                for(int count=data.readInt();count>0;--count) batch.add(data.readInt(),readString(data),readString(data),data.readBoolean());
+                library.bulkInsert(batch);
+                break;
+            default:
+                throw new IOException("unknown command log record type "+type);
+        }
+    }
+
+    synchronized void logInsert(int bookId, String bookName, String authorName, boolean available){
+        begin(INSERT);
+        writeBook(bookId,bookName,authorName,available);
+        end();
+    }
+
+    synchronized void logBorrow(int patronId, int bookId, int patronPriority){
+        begin(BORROW);
+        writeInt(patronId);
+        writeInt(bookId);
+        writeInt(patronPriority);
+        end();
+    }
+
+    synchronized void logReturn(int patronId, int bookId){
+        begin(RETURN);
+        writeInt(patronId);
+        writeInt(bookId);
+        end();
+    }
+
+    synchronized void logDelete(int bookId){
+        begin(DELETE);
+        writeInt(bookId);
+        end();
+    }
+
+    synchronized void logCancelReservations(int patronId, int bookId){
+        begin(CANCEL_RESERVATIONS);
+        writeInt(patronId);
+        writeInt(bookId);
+        end();
+    }
+
+    synchronized void logBulkInsert(InsertBatch batch){
+        begin(BULK_INSERT);
+        writeInt(batch.size());
+        for(int i=0;i<batch.size();++i) writeBook(batch.bookIds[i],batch.bookNames[i],batch.authorNames[i],batch.available[i]);
+        end();
+    }
+
+    // function which restarts the log from snapshotFileName, a snapshot which is on disk already (--restore)
+    synchronized void restart(String snapshotFileName) throws IOException{
+        prepareRestart(snapshotFileName);
+        finishRestart();
+    }
+
+    // function which writes the log which starts from snapshotFileName to <log>.tmp and forces it, while the snapshot
+    // is still at <snapshot>.tmp; then the snapshot is renamed into place, and finishRestart renames the new log
+    // a crash before the snapshot is renamed leaves the old snapshot and the old log, which still belong together; after
+    // it, the new snapshot and the complete new log: open finishes the restart then (see recover)
+    // the caller keeps every change of the library out until finishRestart returns
+    synchronized void prepareRestart(String snapshotFileName) throws IOException{
+        awaitDurable(); // the sync thread is idle once everything appended is durable
+        begin(SNAPSHOT);
+        writeString(snapshotFileName);
+        ByteArrayOutputStream record=new ByteArrayOutputStream(64);
+        writeRecord(record);
+        try (FileChannel file=FileChannel.open(LibrarySnapshot.temporaryFile(fileName),StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer=ByteBuffer.wrap(record.toByteArray());
+            while(buffer.hasRemaining()) file.write(buffer);
+            file.force(false);
+        }
+        this.snapshotFileName=snapshotFileName;
+    }
+
+    // function which replaces the log with the one prepareRestart wrote
+    synchronized void finishRestart() throws IOException{
+        channel.close(); // an open file can not be replaced on every platform
+        try {
+            LibrarySnapshot.replace(LibrarySnapshot.temporaryFile(fileName),Paths.get(fileName));
+        } finally {
+            channel=FileChannel.open(Paths.get(fileName),StandardOpenOption.READ,StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+    }
+
+    // function which finishes a restart which a crash interrupted: a complete <log>.tmp whose snapshot is in place (its
+    // <snapshot>.tmp is gone) replaces the log, any other <log>.tmp is left over from before the snapshot was renamed
+    private static void recover(String fileName) throws IOException{
+        Path temporary=LibrarySnapshot.temporaryFile(fileName);
+        if(!Files.exists(temporary)) return;
+        String snapshotFileName=readSnapshotRecord(temporary);
+        if(snapshotFileName!=null && !Files.exists(LibrarySnapshot.temporaryFile(snapshotFileName))) LibrarySnapshot.replace(temporary,Paths.get(fileName));
+        else Files.delete(temporary);
+    }
+
+    // function which reads the file name of a log holding only a SNAPSHOT record, null if the record is not complete
+    private static String readSnapshotRecord(Path path) throws IOException{
+        byte[] bytes=Files.readAllBytes(path);
+        if(bytes.length<9) return null;
+        ByteBuffer buffer=ByteBuffer.wrap(bytes);
+        int length=buffer.getInt();
+        int checksum=buffer.getInt();
+        if(length!=bytes.length-8 || bytes[8]!=SNAPSHOT) return null;
+        CRC32 crc=new CRC32();
+        crc.update(bytes,8,length);
+        if((int)crc.getValue()!=checksum) return null;
+        return readString(new DataInputStream(new ByteArrayInputStream(bytes,9,length-1)));
+    }
+
+    private void begin(byte type){
+        recordBytes.reset();
+        writeByte(type);
+    }
+
+    // function which moves the record to the pending batch and wakes up the sync thread
+    private void end(){
+        if(pending.size()==0) batchStart=System.nanoTime();
+        appendedLsn+=writeRecord(pending);
+        if(pending.size()>=SYNC_BYTES) syncRequested=true;
+        notifyAll();
+    }
+
+    // function which writes the record with its length and checksum to out, returns the number of bytes written
+    private int writeRecord(ByteArrayOutputStream out){
+        int length=recordBytes.size();
+        crc.reset();
+        crc.update(recordBytes.toByteArray(),0,length);
+        int checksum=(int)crc.getValue();
+        DataOutputStream data=new DataOutputStream(out);
+        try {
+            data.writeInt(length);
+            data.writeInt(checksum);
+            recordBytes.writeTo(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream does not throw
+        }
+        return 8+length;
+    }
+
+    // function which waits until every record appended so far is forced to disk
+    // only the first waiter of a batch wakes up the sync thread: waiters which kept waking each other up would keep the
+    // sync thread from ever getting the lock
+    synchronized void awaitDurable(){
+        long lsn=appendedLsn;
+        while(durableLsn<lsn){
+            if(failure!=null) throw new UncheckedIOException(failure);
+            if(!syncRequested){
+                syncRequested=true;
+                notifyAll();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("interrupted while waiting for the command log"));
+            }
+        }
+    }
+
+    // the sync thread: waits for a batch, lets it collect records until syncMillis passed since its first record (or
+    // someone waits for it), then writes and forces it outside the lock, so commands keep appending meanwhile
+    private void syncLoop(){
+        while(true){
+            long lsn;
+            FileChannel target;
+            synchronized (this) {
+                try {
+                    while(true){
+                        if(pending.size()==0){
+                            if(closed) return;
+                            wait();
+                            continue;
+                        }
+                        long remaining=syncNanos-(System.nanoTime()-batchStart);
+                        if(syncRequested || closed || remaining<=0) break;
+                        wait(remaining/1000000,(int)(remaining%1000000));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ByteArrayOutputStream batch=pending;
+                pending=writing;
+                writing=batch;
+                syncRequested=false;
+                lsn=appendedLsn;
+                target=channel;
+            }
+            try {
+                ByteBuffer buffer=ByteBuffer.wrap(writing.toByteArray());
+                while(buffer.hasRemaining()) target.write(buffer);
+                target.force(false);
+                writing.reset();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure=e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                durableLsn=lsn;
+                notifyAll();
+            }
+        }
+    }
+
+    // function which forces the last records, stops the sync thread and closes the file
+    void close() throws IOException{
+        synchronized (this) {
+            closed=true;
+            notifyAll();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if(failure!=null) throw failure;
+    }
+
+    private void writeByte(int value){
+        recordBytes.write(value);
+    }
+
+    private void writeInt(int value){
+        recordBytes.write(value>>>24);
+        recordBytes.write(value>>>16);
+        recordBytes.write(value>>>8);
+        recordBytes.write(value);
+    }
+
+    private void writeString(String value){
+        byte[] bytes=value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        recordBytes.write(bytes,0,bytes.length);
+    }
+
+    private void writeBook(int bookId, String bookName, String authorName, boolean available){
+        writeInt(bookId);
+        writeString(bookName);
+        writeString(authorName);
+        writeByte(available?1:0);
+    }
+
+    private static String readString(DataInputStream in) throws IOException{
+        byte[] bytes=new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+}
+
+// BookStrings class which stores the authors and titles of the books of one index compactly
+// authors are kept once in a dictionary and every book of an author refers to the same String; titles are copied as
+// UTF-8 into an arena of 1 MB chunks and a book refers to its title by the chunk and the offset of the title in it
+// (the bytes start with their length as a varint), so a book has no String of its own: a title is only decoded when
+// a String is needed, printing copies its bytes straight into the output buffer
+// the dictionary counts the books of every author and drops an author with no books left; the space of a deleted
+// title (its length rounded up to SLOT_ALIGN) goes to a free list of its size and the next title of that size takes
+// it, so a library whose books are replaced keeps its arena at the size of the live titles instead of growing
+// a persistent tree does not reuse titles (reuses==false), a reader of an older version may still print a deleted
+// book: its chunks are only referred to by the books, so a chunk is freed by the garbage collector once no version
+// has a book in it anymore, and a restored snapshot or a rebuilt shard starts from the live titles only
+// adding and releasing are done by the writer of the index (under its library's write lock); reading needs no lock
+// and does not use the BookStrings at all, a book only reaches other threads through the locks (or the volatile
+// version) of its library, which publish its title bytes together with the book
+
+class BookStrings {
+    private static final int CHUNK_SIZE=1<<20;
+    private static final int SLOT_ALIGN=4; // titles take multiples of 4 bytes, so freed slots fit titles of similar lengths
+    private final boolean reuses; // false for a persistent tree, whose older versions may still read a deleted title
+    private final HashMap<String,Author> authors=new HashMap<>();
+    private final HashMap<Integer,FreeSlots> freeSlots=new HashMap<>(); // slot size -> free slots of that size
+    private byte[] chunk; // the chunk new titles are added to, null before the first title
+    private int chunkPosition;
+
+    // Author class with the shared name of an author and the number of books of the author in the index
+    private static final class Author {
+        final String name;
+        int books;
+
+        Author(String name){
+            this.name=name;
+        }
+    }
+
+    // FreeSlots class, a stack of freed slots of one size as their chunks and offsets
+    private static final class FreeSlots {
+        byte[][] chunks=new byte[4][];
+        int[] offsets=new int[4];
+        int count;
+
+        void push(byte[] chunk, int offset){
+            if(count==chunks.length){
+                chunks=Arrays.copyOf(chunks,2*count);
+                offsets=Arrays.copyOf(offsets,2*count);
+            }
+            chunks[count]=chunk;
+            offsets[count++]=offset;
+        }
+    }
+
+    BookStrings(boolean reuses){
+        this.reuses=reuses;
+    }
+
+    // function which stores the title and author of a new book
+    void add(BookRecord book, String title, String authorName){
+        addAuthor(book,authorName);
+        addTitle(book,title.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // function which takes over a book of another index (a rebuilt shard or a B+ tree made from a red black tree): the
+    // title stays where it is and is freed into this index's free lists on delete, the author joins the dictionary
+    void adopt(BookRecord book){
+        addAuthor(book,book.author);
+    }
+
+    // function called when a book is deleted, its author loses a book and its title slot is freed
+    void release(BookRecord book){
+        Author author=authors.get(book.author);
+        if(--author.books==0) authors.remove(book.author);
+        if(!reuses) return;
+        int size=slotSize(length(book.titleChunk,book.titleOffset));
+        FreeSlots slots=freeSlots.get(size);
+        if(slots==null){
+            slots=new FreeSlots();
+            freeSlots.put(size,slots);
+        }
+        slots.push(book.titleChunk,book.titleOffset);
+    }
+
+    private void addAuthor(BookRecord book, String authorName){
+        Author author=authors.get(authorName);
+        if(author==null){
+            author=new Author(authorName);
+            authors.put(authorName,author);
+        }
+        author.books++;
+        book.author=author.name;
+    }
+
+    // function which copies a title into a free slot of its size or else to the end of the arena
+    private void addTitle(BookRecord book, byte[] bytes){
+        int size=slotSize(bytes.length);
+        FreeSlots slots=freeSlots.get(size);
+        if(slots!=null && slots.count>0){
+            slots.count--;
+            book.titleChunk=slots.chunks[slots.count];
+            book.titleOffset=slots.offsets[slots.count];
+            slots.chunks[slots.count]=null;
+        }
+        else{
+            if(chunk==null || chunkPosition+size>chunk.length){
+                chunk=new byte[Math.max(CHUNK_SIZE,size)];
+                chunkPosition=0;
+            }
+            book.titleChunk=chunk;
+            book.titleOffset=chunkPosition;
+            chunkPosition+=size;
+        }
+        int position=book.titleOffset;
+        int length=bytes.length;
+        while(length>=0x80){
+            book.titleChunk[position++]=(byte)(length|0x80);
+            length>>>=7;
+        }
+        book.titleChunk[position++]=(byte)length;
+        System.arraycopy(bytes,0,book.titleChunk,position,bytes.length);
+    }
+
+    // function to get the bytes a title of length bytes takes in the arena, its length varint included
+    private static int slotSize(int length){
+        int size=length+1;
+        for(int rest=length>>>7;rest!=0;rest>>>=7) size++;
+        return (size+SLOT_ALIGN-1)/SLOT_ALIGN*SLOT_ALIGN;
+    }
+
+    // function which returns the offset of the first byte of a title in its chunk, the length is stored before it
+    private static int start(byte[] chunk, int offset){
+        while(chunk[offset]<0) offset++;
+        return offset+1;
+    }
+
+    private static int length(byte[] chunk, int offset){
+        int length=0;
+        for(int shift=0;;++offset, shift+=7){
+            length|=(chunk[offset]&0x7F)<<shift;
+            if(chunk[offset]>=0) return length;
+        }
+    }
+
+    static String title(BookRecord book){
+        byte[] chunk=book.titleChunk;
+        return new String(chunk,start(chunk,book.titleOffset),length(chunk,book.titleOffset),StandardCharsets.UTF_8);
+    }
+
+    // function which copies the UTF-8 bytes of a title out of the arena, they stay valid after the book is deleted
+    static byte[] titleBytes(BookRecord book){
+        int start=start(book.titleChunk,book.titleOffset);
+        return Arrays.copyOfRange(book.titleChunk,start,start+length(book.titleChunk,book.titleOffset));
+    }
+
+    static void appendTitle(OutputWriter out, BookRecord book){
+        byte[] chunk=book.titleChunk;
+        out.appendUtf8(chunk,start(chunk,book.titleOffset),length(chunk,book.titleOffset));
+    }
+
+    // function which writes a title as a length and its UTF-8 bytes (the format of the snapshot strings)
+    static void writeTitle(DataOutputStream out, BookRecord book) throws IOException{
+        byte[] chunk=book.titleChunk;
+        int length=length(chunk,book.titleOffset);
+        out.writeInt(length);
+        out.write(chunk,start(chunk,book.titleOffset),length);
+    }
+
+    // function which compares two titles by their UTF-8 bytes (the order of their code points)
+    static int compareTitles(BookRecord book1, BookRecord book2){
+        byte[] chunk=book2.titleChunk;
+        return compareTitle(book1,chunk,start(chunk,book2.titleOffset),length(chunk,book2.titleOffset));
+    }
+
+    static int compareTitle(BookRecord book, byte[] bytes, int offset, int length){
+        byte[] chunk=book.titleChunk;
+        return compareBytes(chunk,start(chunk,book.titleOffset),length(chunk,book.titleOffset),bytes,offset,length);
+    }
+
+    // function which compares two byte ranges as unsigned bytes, a range which is a prefix of the other is smaller
+    static int compareBytes(byte[] bytes1, int offset1, int length1, byte[] bytes2, int offset2, int length2){
+        int count=Math.min(length1,length2);
+        for(int i=0;i<count;++i){
+            int difference=(bytes1[offset1+i]&0xFF)-(bytes2[offset2+i]&0xFF);
+            if(difference!=0) return difference;
+        }
+        return length1-length2;
+    }
+
+    static boolean titleStartsWith(BookRecord book, byte[] prefix){
+        byte[] chunk=book.titleChunk;
+        if(length(chunk,book.titleOffset)<prefix.length) return false;
+        int start=start(chunk,book.titleOffset);
+        for(int i=0;i<prefix.length;++i){
+            if(chunk[start+i]!=prefix[i]) return false;
+        }
+        return true;
+    }
+}
+
+// CatalogIndex class which keeps secondary indexes of the books of a red black tree: by author and by title
+// every author maps to its books ordered by bookId, and all books are kept in one set ordered by title and then
+// bookId, so the books of an author or the books whose title starts with a prefix are found in time proportional to
+// the number of books found (plus one O(log n) lookup), instead of walking the whole tree
+// the sets hold the nodes themselves (one tree entry per book and index) and compare their bookIds and arena titles
+// RedBlackTree keeps it up to date on insert, delete (including the clone path, where a book moves to another node),
+// bulkInsert and snapshot restore
+
+class CatalogIndex {
+    static final Comparator<BookRecord> TITLE_ORDER=CatalogIndex::compareByTitle;
+    private static final Comparator<BookRecord> BOOK_ID_ORDER=(node1,node2) -> Integer.compare(node1.bookId,node2.bookId);
+    private final Map<String,TreeSet<BookRecord>> byAuthor=new HashMap<>();
+    private final TreeSet<BookRecord> byTitle=new TreeSet<>(TITLE_ORDER);
+
+    // TitleProbe class, the key a prefix search starts from: a title which is not in the arena, before every bookId
+    private static final class TitleProbe extends BookRecord {
+        final byte[] titleBytes;
+
+        TitleProbe(String title){
+            super(Integer.MIN_VALUE,false);
+            titleBytes=title.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int compareByTitle(BookRecord node1, BookRecord node2){
+        if(node1==node2) return 0;
+        int compare;
+        if(node2 instanceof TitleProbe) compare=BookStrings.compareTitle(node1,((TitleProbe)node2).titleBytes,0,((TitleProbe)node2).titleBytes.length);
+        else if(node1 instanceof TitleProbe) compare=-BookStrings.compareTitle(node2,((TitleProbe)node1).titleBytes,0,((TitleProbe)node1).titleBytes.length);
+        else compare=BookStrings.compareTitles(node1,node2);
+        return compare!=0?compare:Integer.compare(node1.bookId,node2.bookId);
+    }
+
+    void add(BookRecord node){
+        byAuthor.computeIfAbsent(node.author,author -> new TreeSet<>(BOOK_ID_ORDER)).add(node);
+        byTitle.add(node);
+    }
+
+    void remove(BookRecord node){
+        TreeSet<BookRecord> books=byAuthor.get(node.author);
+        if(books!=null){
+            books.remove(node);
+            if(books.isEmpty()) byAuthor.remove(node.author);
+        }
+        byTitle.remove(node);
+    }
+
+    // function called when the book of node was copied into node from another node (RedBlackTree.clone)
+    // the sets still hold the other node, which compares equal to node now, so it is replaced by node
+    void moved(BookRecord node){
+        TreeSet<BookRecord> books=byAuthor.get(node.author);
+        books.remove(node);
+        books.add(node);
+        byTitle.remove(node);
+        byTitle.add(node);
+    }
+
+    // function which calls the visitor on the books of an author in bookId order
+    void forAuthor(String authorName, BookVisitor visitor){
+        TreeSet<BookRecord> books=byAuthor.get(authorName);
+        if(books==null) return;
+        for(BookRecord node:books) visitor.visit(node);
+    }
+
+    // function which calls the visitor on the books whose title starts with prefix, ordered by title and then bookId
+    void forTitlePrefix(String prefix, BookVisitor visitor){
+        TitleProbe probe=new TitleProbe(prefix);
+        for(BookRecord node:byTitle.tailSet(probe,true)){
+            if(!BookStrings.titleStartsWith(node,probe.titleBytes)) break;
+            visitor.visit(node);
+        }
+    }
+}
+
+// PatronIndex class which keeps the books every patron has borrowed and reserved, so the books of a patron are found
+// in time proportional to their number instead of walking every book and its reservation heap
+// RedBlackTree keeps it up to date on borrowBook, returnBook, delete (the borrower and the cancelled reservations of the
+// book), cancelReservations, build and snapshot restore
+// borrowBook and returnBook of different books run at the same time (ConcurrentLibrary only locks the book), so every
+// change of a patron is done atomically with ConcurrentHashMap.compute, which also drops patrons with no books left
+
+class PatronIndex {
+    private final ConcurrentHashMap<Integer,Patron> patrons=new ConcurrentHashMap<>();
+
+    // Patron class with the bookIds of one patron, a book reserved more than once is counted in reserved
+    static class Patron {
+        final TreeSet<Integer> borrowed=new TreeSet<>();
+        final TreeMap<Integer,Integer> reserved=new TreeMap<>();
+
+        boolean isEmpty(){
+            return borrowed.isEmpty() && reserved.isEmpty();
+        }
+    }
+
+    void borrowed(int patronId, int bookId){
+        patrons.compute(patronId,(id,patron) -> {
+            if(patron==null) patron=new Patron();
+            patron.borrowed.add(bookId);
+            return patron;
+        });
+    }
+
+    void returned(int patronId, int bookId){
+        patrons.computeIfPresent(patronId,(id,patron) -> {
+            patron.borrowed.remove(bookId);
+            return patron.isEmpty()?null:patron;
+        });
+    }
+
+    void reserved(int patronId, int bookId){
+        patrons.compute(patronId,(id,patron) -> {
+            if(patron==null) patron=new Patron();
+            patron.reserved.merge(bookId,1,Integer::sum);
+            return patron;
+        });
+    }
+
+    void unreserved(int patronId, int bookId){
+        patrons.computeIfPresent(patronId,(id,patron) -> {
+            patron.reserved.computeIfPresent(bookId,(book,count) -> count>1?count-1:null);
+            return patron.isEmpty()?null:patron;
+        });
+    }
+
+    // function to add the borrower and the reservations of a book
+    void addBook(BookRecord node){
+        if(node.borrowedBy!=-1) borrowed(node.borrowedBy,node.bookId);
+        MinHeap heap=node.reservationHeap;
+        if(heap==null) return;
+        for(int i=0;i<heap.size();++i) reserved(heap.patronIdAt(i),node.bookId);
+    }
+
+    // function to remove the borrower and the reservations of a deleted book
+    void removeBook(BookRecord node){
+        if(node.borrowedBy!=-1) returned(node.borrowedBy,node.bookId);
+        MinHeap heap=node.reservationHeap;
+        if(heap==null) return;
+        for(int i=0;i<heap.size();++i) unreserved(heap.patronIdAt(i),node.bookId);
+    }
+
+    // function to get the bookIds borrowed by a patron in increasing order
+    int[] borrowedBooks(int patronId){
+        int[][] books=new int[1][0];
+        patrons.computeIfPresent(patronId,(id,patron) -> {
+            books[0]=patron.borrowed.stream().mapToInt(Integer::intValue).toArray();
+            return patron;
+        });
+        return books[0];
+    }
+
+    // function to get the bookIds reserved by a patron in increasing order (a book reserved twice is there twice)
+    int[] reservedBooks(int patronId){
+        int[][] books=new int[1][0];
+        patrons.computeIfPresent(patronId,(id,patron) -> {
+            int count=0;
+            for(int times:patron.reserved.values()) count+=times;
+            books[0]=new int[count];
+            int i=0;
+            for(Map.Entry<Integer,Integer> entry:patron.reserved.entrySet()){
+                for(int j=0;j<entry.getValue();++j) books[0][i++]=entry.getKey();
+            }
+            return patron;
+        });
+        return books[0];
+    }
+}
+
+// RangeCursor class which walks the books from lowBookId to highBookId in bookId order, one at a time
+// it starts at the ceiling of lowBookId and moves with RedBlackTree.successor (parent pointers), so it needs neither
+// recursion nor a list, and a scan over any number of books uses constant memory
+// the tree must not change structurally while a cursor is used
+
+class RangeCursor implements Iterator<RedBlackTreeNode> {
+    private final RedBlackTree tree;
+    private final int highBookId;
+    private RedBlackTreeNode next; // next node to return, null at the end of the range
+
+    RangeCursor(RedBlackTree tree, int lowBookId, int highBookId){
+        this.tree=tree;
+        this.highBookId=highBookId;
+        this.next=lowBookId>highBookId?null:inRange(tree.ceiling(lowBookId));
+    }
+
+    private RedBlackTreeNode inRange(RedBlackTreeNode node){
+        return node!=null && node.bookId<=highBookId?node:null;
+    }
+
+    public boolean hasNext(){
+        return next!=null;
+    }
+
+    public RedBlackTreeNode next(){
+        if(next==null) throw new NoSuchElementException();
+        RedBlackTreeNode node=next;
+        next=inRange(tree.successor(node));
+        return node;
+    }
+}
+
+// TreeCursor class which walks the books from lowBookId to highBookId in bookId order like RangeCursor, but keeps the
+// path to the next node on a stack instead of following parent pointers, so it also walks the versions of a
+// PersistentTree, whose shared nodes have no valid parent (a red black tree of 2^31 books is at most 62 levels high)
+
+class TreeCursor implements Iterator<RedBlackTreeNode> {
+    private final RedBlackTreeNode[] stack=new RedBlackTreeNode[64]; // nodes whose left part is done, next on top
+    private int top=0;
+    private final int highBookId;
+
+    TreeCursor(RedBlackTreeNode root, int lowBookId, int highBookId){
+        this.highBookId=highBookId;
+        if(lowBookId>highBookId) return;
+        for(RedBlackTreeNode node=root;node!=null;){
+            if(node.bookId>=lowBookId){
+              stack[top++]=node;
+              node=node.left;
+            }
+            else node=node.right;
+        }
+    }
+
+    public boolean hasNext(){
+        return top>0 && stack[top-1].bookId<=highBookId;
+    }
+
+    public RedBlackTreeNode next(){
+        if(!hasNext()) throw new NoSuchElementException();
+        RedBlackTreeNode node=stack[--top];
+        for(RedBlackTreeNode child=node.right;child!=null;child=child.left) stack[top++]=child;
+        return node;
+    }
+}
+
+// InsertBatch class which collects the books of consecutive InsertBook commands (or a catalog file) for RedBlackTree.bulkInsert
+
+class InsertBatch {
+    int[] bookIds=new int[64];
+    String[] bookNames=new String[64];
+    String[] authorNames=new String[64];
+    boolean[] available=new boolean[64];
+    private int size=0;
+
+    void add(int bookId, String bookName, String authorName, boolean isAvailable){
+        if(size==bookIds.length){
+            bookIds=Arrays.copyOf(bookIds,2*size);
+            bookNames=Arrays.copyOf(bookNames,2*size);
+            authorNames=Arrays.copyOf(authorNames,2*size);
+            available=Arrays.copyOf(available,2*size);
+        }
+        bookIds[size]=bookId;
+        bookNames[size]=bookName;
+        authorNames[size]=authorName;
+        available[size]=isAvailable;
+        size++;
+    }
+
+    int size(){
+        return size;
+    }
+
+    // function which returns the batch in bookId order, as bookId in the high 32 bits and batch index in the low 32 bits
+    // (the sort is skipped when the books were added in bookId order already, like in a sorted catalog file)
+    long[] sortedOrder(){
+        long[] order=new long[size];
+        boolean sorted=true;
+        for(int i=0;i<size;++i){
+            order[i]=((long)bookIds[i]<<32)|i;
+            if(i>0 && bookIds[i]<bookIds[i-1]) sorted=false;
+        }
+        if(!sorted) Arrays.sort(order);
+        return order;
+    }
+
+    void clear(){
+        Arrays.fill(bookNames,0,size,null);
+        Arrays.fill(authorNames,0,size,null);
+        size=0;
+    }
+}
+
+// BookVisitor interface for reading a book while the library holds the locks protecting it
+
+interface BookVisitor {
+    void visit(BookRecord node);
+}
+
+// Library interface for the operations the command sessions run against the books, implemented by ConcurrentLibrary
+// (one book index, a red black tree or a B+ tree), PersistentLibrary (versions of one persistent red black tree) and
+// ShardedLibrary (a red black tree per range of bookIds); all of them are thread safe
+
+interface Library {
+    boolean contains(int bookId);
+    int colorFlipCount();
+    void readTreeStats(LibraryStats.TreeStats stats);
+    boolean readBook(int bookId, BookVisitor visitor);
+    boolean readKth(int k, BookVisitor visitor);
+    int countBooks(int lowBookId, int highBookId);
+    int bookRank(int bookId);
+    int readRange(int lowBookId, int highBookId, int limit, BookVisitor visitor);
+    void readByAuthor(String authorName, BookVisitor visitor);
+    void readByTitlePrefix(String prefix, BookVisitor visitor);
+    void readClosest(int targetBookId, BookVisitor visitor);
+    void insert(int bookId, String bookName, String authorName, boolean available);
+    void bulkInsert(InsertBatch batch);
+    int snapshot(String fileName) throws IOException;
+    String delete(int bookId);
+    int borrowBook(int patronId, int bookId, int patronPriority);
+    int returnBook(int patronId, int bookId);
+    int[] borrowedBooks(int patronId);
+    int[] reservedBooks(int patronId);
+    int[] cancelAllReservations(int patronId);
+    boolean cancelReservations(int patronId, int bookId); // one book of cancelAllReservations, for replaying the command log
+    // function which makes the library append every change to log from now on (called once, before commands run)
+    void setLog(CommandLog log);
+}
+
+// ConcurrentLibrary class which lets many command streams share one book index (a red black tree or a B+ tree)
+// structural changes (insert, delete) take the write lock of treeLock, everything else takes its read lock
+// (or an optimistic read for single values), so the index shape never changes under a reader
+// borrowBook and returnBook only change one book, so besides the read lock they lock just that book's stripe
+// of bookLocks, and patrons borrowing different books from many threads do not wait for each other
+// readers also lock the stripe of every book they visit, so a book's availability and reservations are seen consistently
+// a change is appended to the command log (if there is one) under the same locks, after it was made
+
+class ConcurrentLibrary implements Library {
+    final BookIndex index;
+    private final StampedLock treeLock=new StampedLock();
+    private final ReentrantLock[] bookLocks; // lock stripes, a book is protected by bookLocks[stripe(bookId)]
+    private CommandLog log; // null if the changes are not logged
+
+    ConcurrentLibrary(BookIndex index){
+        this.index=index;
+        int stripes=16;
+        while(stripes<4*Runtime.getRuntime().availableProcessors()) stripes*=2;
+        bookLocks=new ReentrantLock[stripes];
+        for(int i=0;i<stripes;++i) bookLocks[i]=new ReentrantLock();
+    }
+
+    // function which maps a bookId to its lock stripe (the multiplication spreads consecutive bookIds over all stripes)
+    private ReentrantLock bookLock(int bookId){
+        return bookLocks[((bookId*0x9E3779B9)>>>16)&(bookLocks.length-1)];
+    }
+
+    // function which checks if a book exists, first without locking and only if the tree changed meanwhile under the read lock
+    public boolean contains(int bookId){
+        long stamp=treeLock.tryOptimisticRead();
+        if(stamp!=0L){
+            try {
+                boolean found=index.searchBounded(bookId);
+                if(treeLock.validate(stamp)) return found;
+            } catch (RuntimeException e) {
+                // the tree was changed during the optimistic read, read it again under the lock
+            }
+        }
+        stamp=treeLock.readLock();
+        try {
+            return index.search(bookId)!=null;
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    public int colorFlipCount(){
+        long stamp=treeLock.tryOptimisticRead();
+        int count=index.colorFlipCount();
+        if(treeLock.validate(stamp)) return count;
+        stamp=treeLock.readLock();
+        try {
+            return index.colorFlipCount();
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which collects the shape of the index (height, black height, rotations, reservation heap sizes) into stats
+    public void readTreeStats(LibraryStats.TreeStats stats){
+        long stamp=treeLock.readLock();
+        try {
+            index.readStats(stats); // heap sizes are read without the book locks, a borrow may be in progress
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which calls the visitor on a book, returns false if the book does not exist
+    public boolean readBook(int bookId, BookVisitor visitor){
+        long stamp=treeLock.readLock();
+        try {
+            BookRecord node=index.search(bookId);
+            if(node==null) return false;
+            visitBook(node,visitor);
+            return true;
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which calls the visitor on the book of rank k, returns false if there is none
+    public boolean readKth(int k, BookVisitor visitor){
+        long stamp=treeLock.readLock();
+        try {
+            BookRecord node=index.select(k);
+            if(node==null) return false;
+            visitBook(node,visitor);
+            return true;
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    public int countBooks(int lowBookId, int highBookId){
+        long stamp=treeLock.readLock();
+        try {
+            return index.countRange(lowBookId,highBookId);
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    public int bookRank(int bookId){
+        long stamp=treeLock.readLock();
+        try {
+            return index.rank(bookId);
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    public int size(){
+        long stamp=treeLock.readLock();
+        try {
+            return index.size();
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function to find the largest bookId less than or equal to bookId, Long.MIN_VALUE if there is none
+    public long floorBookId(int bookId){
+        long stamp=treeLock.readLock();
+        try {
+            BookRecord node=index.floor(bookId);
+            return node==null?Long.MIN_VALUE:node.bookId;
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function to find the smallest bookId greater than or equal to bookId, Long.MAX_VALUE if there is none
+    public long ceilingBookId(int bookId){
+        long stamp=treeLock.readLock();
+        try {
+            BookRecord node=index.ceiling(bookId);
+            return node==null?Long.MAX_VALUE:node.bookId;
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which calls the visitor on at most limit books from lowBookId to highBookId in bookId order
+    // and returns the number of books visited
+    // the books are visited while the index is walked, so the first ones are visited right away
+    public int readRange(int lowBookId, int highBookId, int limit, BookVisitor visitor){
+        long stamp=treeLock.readLock();
+        try {
+            return index.rangeSearch(lowBookId,highBookId,limit,node -> visitBook(node,visitor));
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which calls the visitor on the books of an author in bookId order
+    public void readByAuthor(String authorName, BookVisitor visitor){
+        long stamp=treeLock.readLock();
+        try {
+            index.catalogIndex().forAuthor(authorName,node -> visitBook(node,visitor));
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which calls the visitor on the books whose title starts with prefix, ordered by title
+    public void readByTitlePrefix(String prefix, BookVisitor visitor){
+        long stamp=treeLock.readLock();
+        try {
+            index.catalogIndex().forTitlePrefix(prefix,node -> visitBook(node,visitor));
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which calls the visitor on the books closest to targetBookId in bookId order
+    public void readClosest(int targetBookId, BookVisitor visitor){
+        long stamp=treeLock.readLock();
+        try {
+            for(BookRecord node:index.findClosest(targetBookId)) visitBook(node,visitor);
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    private void visitBook(BookRecord node, BookVisitor visitor){
+        ReentrantLock lock=bookLock(node.bookId);
+        lock.lock();
+        try {
+            visitor.visit(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setLog(CommandLog log){
+        this.log=log;
+    }
+
+    public void insert(int bookId, String bookName, String authorName, boolean available){
+        long stamp=treeLock.writeLock();
+        try {
+            index.insert(bookId,bookName,authorName,available);
+            if(log!=null) log.logInsert(bookId,bookName,authorName,available);
+        } finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    public void bulkInsert(InsertBatch batch){
+        long stamp=treeLock.writeLock();
+        try {
+            index.bulkInsert(batch);
+            if(log!=null) log.logBulkInsert(batch);
+        } finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    // function to save the library to a snapshot file, the write lock keeps every book as it was at one point in time
+    // (and keeps every change out until the command log is restarted from the saved file)
+    public int snapshot(String fileName) throws IOException{
+        long stamp=treeLock.writeLock();
+        try {
+            return LibrarySnapshot.write(index,fileName,log);
+        } finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    public String delete(int bookId){
+        long stamp=treeLock.writeLock();
+        try {
+            String patronsList=index.delete(bookId);
+            if(log!=null) log.logDelete(bookId);
+            return patronsList;
+        } finally {
+            treeLock.unlockWrite(stamp);
+        }
+    }
+
+    public int borrowBook(int patronId, int bookId, int patronPriority){
+        long stamp=treeLock.readLock();
+        ReentrantLock lock=bookLock(bookId);
+        lock.lock();
+        try {
+            int result=index.borrowBook(patronId,bookId,patronPriority);
+            if(log!=null) log.logBorrow(patronId,bookId,patronPriority);
+            return result;
+        } finally {
+            lock.unlock();
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    public int returnBook(int patronId, int bookId){
+        long stamp=treeLock.readLock();
+        ReentrantLock lock=bookLock(bookId);
+        lock.lock();
+        try {
+            int nextPatronId=index.returnBook(patronId,bookId);
+            if(log!=null) log.logReturn(patronId,bookId);
+            return nextPatronId;
+        } finally {
+            lock.unlock();
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    public int[] borrowedBooks(int patronId){
+        long stamp=treeLock.readLock();
+        try {
+            return index.patronIndex().borrowedBooks(patronId);
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    public int[] reservedBooks(int patronId){
+        long stamp=treeLock.readLock();
+        try {
+            return index.patronIndex().reservedBooks(patronId);
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which cancels the reservations of a patron book by book, each under the lock of its book
+    public int[] cancelAllReservations(int patronId){
+        long stamp=treeLock.readLock();
+        try {
+            int[] bookIds=index.patronIndex().reservedBooks(patronId);
+            int count=0;
+            for(int i=0;i<bookIds.length;++i){
+                if(i>0 && bookIds[i]==bookIds[i-1]) continue; // all reservations of a book are cancelled at once
+                if(cancelBook(patronId,bookIds[i])) bookIds[count++]=bookIds[i];
+            }
+            return Arrays.copyOf(bookIds,count);
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    public boolean cancelReservations(int patronId, int bookId){
+        long stamp=treeLock.readLock();
+        try {
+            return cancelBook(patronId,bookId);
+        } finally {
+            treeLock.unlockRead(stamp);
+        }
+    }
+
+    // function which cancels the reservations of a patron for one book under the lock of the book (call with the read lock)
+    private boolean cancelBook(int patronId, int bookId){
+        ReentrantLock lock=bookLock(bookId);
+        lock.lock();
+        try {
+            if(!index.cancelReservations(patronId,bookId)) return false;
+            if(log!=null) log.logCancelReservations(patronId,bookId);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+// PersistentTree class, a red black tree whose inserts, deletes and book changes never change the fields readers follow
+// (bookId, the book and its reservations, color, subtree size, left and right) of a node which an older version of the
+// tree can still reach: every node an operation changes is copied first (path copying), so an operation makes a new
+// root and the old root stays a complete, unchanging tree for the readers which hold it
+// only the parent pointer of a shared node is rewritten, by the rotations and replaceRBTParentsChild of RedBlackTree
+// when they link a shared subtree below a copy
+// the fix-ups are the ones of RedBlackTree, which only change the nodes on the path to the book, the uncle, the sibling
+// and the sibling's children: the overridden functions copy exactly those before the fix-up gets to them, so the
+// shape, colors and color flips are the same as with RedBlackTree
+// copies made by the current operation are in owned and are changed in place, parent pointers are only valid on them
+// (a shared node's parent may point into any version and is never read), so versions are walked with TreeCursor
+
+class PersistentTree extends RedBlackTree {
+    private RedBlackTreeNode[] owned=new RedBlackTreeNode[64]; // nodes copied by the current operation
+    private int ownedCount=0;
+
+    // the titles of deleted books are not reused, an older version may still have the book
+    PersistentTree(){
+        super(new BookStrings(false));
+    }
+
+    // function which starts a new operation, the nodes copied by the last one may be shared by a published version now
+    private void beginOperation(){
+        Arrays.fill(owned,0,ownedCount,null);
+        ownedCount=0;
+    }
+
+    // an operation copies a few nodes per level of the tree, so a linear search is faster than hashing them
+    private boolean owns(RedBlackTreeNode node){
+        for(int i=ownedCount-1;i>=0;--i){
+            if(owned[i]==node) return true;
+        }
+        return false;
+    }
+
+    // function which returns node or, if the current operation does not own it, its copy linked into the owned parent
+    private RedBlackTreeNode own(RedBlackTreeNode node, RedBlackTreeNode parent){
+        if(node==null || node.getClass()==NilNode.class) return node;
+        if(!owns(node)){
+            RedBlackTreeNode copy=copy(node);
+            if(parent==null) root=copy;
+            else if(parent.left==node) parent.left=copy;
+            else parent.right=copy;
+            if(ownedCount==owned.length) owned=Arrays.copyOf(owned,2*ownedCount);
+            owned[ownedCount++]=copy;
+            node=copy;
+        }
+        node.parent=parent;
+        return node;
+    }
+
+    // the reservation heap is shared, it is copied when the reservations change
+    private static RedBlackTreeNode copy(RedBlackTreeNode node){
+        return new RedBlackTreeNode(node);
+    }
+
+    // function which copies the path from the root to bookId (or to where it would be inserted), returns the book's node
+    private RedBlackTreeNode ownPath(int bookId){
+        RedBlackTreeNode parent=null;
+        RedBlackTreeNode node=own(root,null);
+        while(node!=null && node.bookId!=bookId){
+            parent=node;
+            node=own(bookId<node.bookId?node.left:node.right,parent);
+        }
+        return node;
+    }
+
+    // function which copies a whole subtree, so the parent pointers of every node are valid (before a bulk rebuild,
+    // which changes every node and copies nothing else, so the copies are not added to owned)
+    private RedBlackTreeNode copyAll(RedBlackTreeNode node, RedBlackTreeNode parent){
+        if(node==null) return null;
+        RedBlackTreeNode copy=copy(node);
+        copy.parent=parent;
+        copy.left=copyAll(node.left,copy);
+        copy.right=copyAll(node.right,copy);
+        return copy;
+    }
+
+    // an existing bookId is found before anything is copied
+    public void insert(int bookId, String bookName, String authorName, boolean available){
+        if(search(bookId)!=null) return;
+        beginOperation();
+        ownPath(bookId); // the subtree sizes on the path go up, the copies have valid parent pointers
+        super.insert(bookId,bookName,authorName,available);
+    }
+
+    // the rebuild of a big batch changes every node, so the whole tree is copied first
+    public void bulkInsert(InsertBatch batch){
+        if(rebuildsFor(batch.size())){
+            beginOperation();
+            root=copyAll(root,null);
+        }
+        super.bulkInsert(batch);
+    }
+
+    // besides the path to the book, a book with two children needs the path to its predecessor, which is removed
+    public String delete(int bookId){
+        beginOperation();
+        RedBlackTreeNode node=ownPath(bookId);
+        if(node!=null && node.left!=null && node.right!=null){
+            RedBlackTreeNode predecessor=own(node.left,node);
+            while(predecessor.right!=null) predecessor=own(predecessor.right,predecessor);
+        }
+        return super.delete(bookId);
+    }
+
+    // the child which moves up may be recolored
+    public RedBlackTreeNode deleteZeroOrOneChildNode(RedBlackTreeNode node){
+        own(node.left,node);
+        own(node.right,node);
+        return super.deleteZeroOrOneChildNode(node);
+    }
+
+    // the uncle may be recolored
+    public RedBlackTreeNode getRBTUncle(RedBlackTreeNode parent){
+        RedBlackTreeNode grandparent=parent.parent;
+        return own(super.getRBTUncle(parent),grandparent);
+    }
+
+    // the sibling and its children may be recolored and rotated
+    public RedBlackTreeNode getRBTNodeSibling(RedBlackTreeNode node){
+        RedBlackTreeNode sibling=own(super.getRBTNodeSibling(node),node.parent);
+        if(sibling!=null){
+            own(sibling.left,sibling);
+            own(sibling.right,sibling);
+        }
+        return sibling;
+    }
+
+    // borrowBook, returnBook and cancelReservations copy the path to the book and its reservation heap before changing them
+    public int borrowBook(int patronId, int bookId, int patronPriority){
+        ownBook(bookId);
+        return super.borrowBook(patronId,bookId,patronPriority);
+    }
+
+    public int returnBook(int patronId, int bookId){
+        ownBook(bookId);
+        return super.returnBook(patronId,bookId);
+    }
+
+    public boolean cancelReservations(int patronId, int bookId){
+        ownBook(bookId);
+        return super.cancelReservations(patronId,bookId);
+    }
+
+    private void ownBook(int bookId){
+        beginOperation();
+        RedBlackTreeNode node=ownPath(bookId);
+        if(node!=null && node.reservationHeap!=null) node.reservationHeap=node.reservationHeap.copy();
+    }
+}
+
+// PersistentLibrary class which lets readers run without any lock on a PersistentTree
+// writers take writeLock one at a time, change the tree (which copies what it changes) and publish the new root as
+// an immutable Version through a volatile field; a reader takes the current version once and reads only from it, so
+// a long PrintBooks report sees every book as it was at one point in time while books are borrowed and inserted
+// the catalog and patron indexes are not versioned: author and title queries find the bookIds under writeLock and
+// read the books from the version of that moment, patron queries read the concurrent PatronIndex
+
+class PersistentLibrary implements Library {
+    final PersistentTree tree;
+    private final ReentrantLock writeLock=new ReentrantLock();
+    private volatile Version current;
+    private CommandLog log; // null if the changes are not logged, they are appended under writeLock
+
+    // a published state of the tree, its nodes never change
+    static final class Version {
+        final RedBlackTreeNode root;
+        final int colorFlips;
+
+        Version(RedBlackTreeNode root, int colorFlips){
+            this.root=root;
+            this.colorFlips=colorFlips;
+        }
+    }
+
+    PersistentLibrary(PersistentTree tree){
+        this.tree=tree;
+        publish();
+    }
+
+    // function which makes the changes of the last write visible to the readers, called under writeLock
+    private void publish(){
+        current=new Version(tree.root,tree.colorFlipCount());
+    }
+
+    public boolean contains(int bookId){
+        return RedBlackTree.search(current.root,bookId)!=null;
+    }
+
+    public int colorFlipCount(){
+        return current.colorFlips;
+    }
+
+    // rotation counters are only kept by the tree, so the shape is read under writeLock
+    public void readTreeStats(LibraryStats.TreeStats stats){
+        writeLock.lock();
+        try {
+            tree.readStats(stats);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean readBook(int bookId, BookVisitor visitor){
+        RedBlackTreeNode node=RedBlackTree.search(current.root,bookId);
+        if(node==null) return false;
+        visitor.visit(node);
+        return true;
+    }
+
+    public boolean readKth(int k, BookVisitor visitor){
+        RedBlackTreeNode node=RedBlackTree.select(current.root,k);
+        if(node==null) return false;
+        visitor.visit(node);
+        return true;
+    }
+
+    public int countBooks(int lowBookId, int highBookId){
+        if(lowBookId>highBookId) return 0;
+        RedBlackTreeNode root=current.root;
+        int atMostHigh=highBookId==Integer.MAX_VALUE?RedBlackTree.sizeOf(root):RedBlackTree.countLess(root,highBookId+1);
+        return atMostHigh-RedBlackTree.countLess(root,lowBookId);
+    }
+
+    public int bookRank(int bookId){
+        RedBlackTreeNode root=current.root;
+        return RedBlackTree.search(root,bookId)==null?0:RedBlackTree.countLess(root,bookId)+1;
+    }
+
+    public int readRange(int lowBookId, int highBookId, int limit, BookVisitor visitor){
+        TreeCursor cursor=new TreeCursor(current.root,lowBookId,highBookId);
+        int count=0;
+        for(;count<limit && cursor.hasNext();++count) visitor.visit(cursor.next());
+        return count;
+    }
+
+    // the catalog index is read under writeLock together with the version its books are then read from
+    // (the index keeps the node a book had when it was indexed, only its bookId is used)
+    public void readByAuthor(String authorName, BookVisitor visitor){
+        List<BookRecord> indexed=new ArrayList<>();
+        Version version;
+        writeLock.lock();
+        try {
+            tree.catalogIndex.forAuthor(authorName,indexed::add);
+            version=current;
+        } finally {
+            writeLock.unlock();
+        }
+        for(BookRecord node:indexed) visitor.visit(RedBlackTree.search(version.root,node.bookId));
+    }
+
+    public void readByTitlePrefix(String prefix, BookVisitor visitor){
+        List<BookRecord> indexed=new ArrayList<>();
+        Version version;
+        writeLock.lock();
+        try {
+            tree.catalogIndex.forTitlePrefix(prefix,indexed::add);
+            version=current;
+        } finally {
+            writeLock.unlock();
+        }
+        for(BookRecord node:indexed) visitor.visit(RedBlackTree.search(version.root,node.bookId));
+    }
+
+    public void readClosest(int targetBookId, BookVisitor visitor){
+        for(BookRecord node:RedBlackTree.findClosest(current.root,targetBookId)) visitor.visit(node);
+    }
+
+    public void setLog(CommandLog log){
+        this.log=log;
+    }
+
+    public void insert(int bookId, String bookName, String authorName, boolean available){
+        writeLock.lock();
+        try {
+            tree.insert(bookId,bookName,authorName,available);
+            if(log!=null) log.logInsert(bookId,bookName,authorName,available);
+            publish();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void bulkInsert(InsertBatch batch){
+        writeLock.lock();
+        try {
+            tree.bulkInsert(batch);
+            if(log!=null) log.logBulkInsert(batch);
+            publish();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int snapshot(String fileName) throws IOException{
+        writeLock.lock();
+        try {
+            return LibrarySnapshot.write(tree,fileName,log);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public String delete(int bookId){
+        writeLock.lock();
+        try {
+            String patronsList=tree.delete(bookId);
+            if(log!=null) log.logDelete(bookId);
+            publish();
+            return patronsList;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int borrowBook(int patronId, int bookId, int patronPriority){
+        writeLock.lock();
+        try {
+            int result=tree.borrowBook(patronId,bookId,patronPriority);
+            if(log!=null) log.logBorrow(patronId,bookId,patronPriority);
+            publish();
+            return result;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int returnBook(int patronId, int bookId){
+        writeLock.lock();
+        try {
+            int nextPatronId=tree.returnBook(patronId,bookId);
+            if(log!=null) log.logReturn(patronId,bookId);
+            publish();
+            return nextPatronId;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int[] borrowedBooks(int patronId){
+        return tree.patronIndex.borrowedBooks(patronId);
+    }
+
+    public int[] reservedBooks(int patronId){
+        return tree.patronIndex.reservedBooks(patronId);
+    }
+
+    public int[] cancelAllReservations(int patronId){
+        writeLock.lock();
+        try {
+            int[] bookIds=tree.patronIndex.reservedBooks(patronId);
+            int count=0;
+            for(int i=0;i<bookIds.length;++i){
+                if(i>0 && bookIds[i]==bookIds[i-1]) continue; // all reservations of a book are cancelled at once
+                if(cancelBook(patronId,bookIds[i])) bookIds[count++]=bookIds[i];
+            }
+            publish();
+            return Arrays.copyOf(bookIds,count);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean cancelReservations(int patronId, int bookId){
+        writeLock.lock();
+        try {
+            boolean cancelled=cancelBook(patronId,bookId);
+            publish();
+            return cancelled;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // function which cancels the reservations of a patron for one book (call with writeLock)
+    private boolean cancelBook(int patronId, int bookId){
+        if(!tree.cancelReservations(patronId,bookId)) return false;
+        if(log!=null) log.logCancelReservations(patronId,bookId);
+        return true;
+    }
+}
+
+// ShardedLibrary class which splits the bookId space into ranges and keeps the books of every range in its own
+// ConcurrentLibrary (a shard), so writers of different ranges do not wait for each other and no tree gets too big
+// commands for one book go to the shard of its bookId, range, closest, rank and count queries go over the shards in
+// bookId order and ColorFlipCount is the sum of the counts of the shards
+// a shard which grows above maxShardSize books is split in two at its median bookId, and a shard which has less than
+// maxShardSize/4 books together with its right neighbour is merged with it (as long as there are more shards than the
+// library was created with, so small shards of a small library stay apart), while the library is in use: commands hold
+// the read lock of shardLock, which keeps the ranges fixed, and a split or merge takes its write lock while it rebuilds
+// the shards balanced (O(n) in their books, the rebuild is not counted as color flips)
+// queries over several shards read one shard after the other, so a writer can change a shard which was already read
+
+class ShardedLibrary implements Library {
+    private final ReentrantReadWriteLock shardLock=new ReentrantReadWriteLock();
+    private int[] lowBookIds; // lowest bookId of every shard, increasing, lowBookIds[0] is Integer.MIN_VALUE
+    private ConcurrentLibrary[] shards;
+    private final int maxShardSize;
+    private final int minShardCount; // the number of shards the library was created with, merges never go below it
+    private final int reservationLimit;
+    private boolean evenRanges; // created without books, the ranges are equal parts of the bookIds until rebalance
+    // every shard appends its own changes to the log; splits and merges are not logged, replaying the inserts and deletes
+    // makes them again (after concurrent inserts a shard may then be split at another bookId, with the same books)
+    private CommandLog log;
+
+    // creates count shards from the books of tree, with equal numbers of books
+    // (or if tree is empty, for equal ranges of the non negative bookIds, which the first bulk insert or the first full
+    // shard replaces by ranges with equal numbers of books)
+    ShardedLibrary(RedBlackTree tree, int count, int maxShardSize){
+        this.maxShardSize=Math.max(1,maxShardSize); // a split shard must have books on both sides
+        this.reservationLimit=tree.reservationLimit;
+        RedBlackTreeNode[] nodes=tree.nodesInOrder();
+        if(nodes.length>0) count=Math.min(count,nodes.length);
+        minShardCount=count;
+        evenRanges=nodes.length==0;
+        buildShards(nodes,count,tree.colorFlipCount());
+    }
+
+    // function which makes count shards of the books in nodes (in bookId order), with equal numbers of books
+    private void buildShards(RedBlackTreeNode[] nodes, int count, int colorFlips){
+        int total=nodes.length;
+        lowBookIds=new int[count];
+        shards=new ConcurrentLibrary[count];
+        for(int i=0;i<count;++i){
+            int from=(int)((long)total*i/count);
+            int to=(int)((long)total*(i+1)/count);
+            if(i==0) lowBookIds[i]=Integer.MIN_VALUE;
+            else lowBookIds[i]=total==0?(int)((long)Integer.MAX_VALUE*i/count):nodes[from].bookId;
+            shards[i]=newShard(nodes,from,to,i==0?colorFlips:0);
+        }
+    }
+
+    private ConcurrentLibrary newShard(RedBlackTreeNode[] nodes, int from, int to, int colorFlips){
+        RedBlackTree tree=new RedBlackTree();
+        tree.reservationLimit=reservationLimit;
+        tree.build(nodes,from,to);
+        tree.colorFlips=colorFlips;
+        ConcurrentLibrary shard=new ConcurrentLibrary(tree);
+        shard.setLog(log);
+        return shard;
+    }
+
+    public void setLog(CommandLog log){
+        shardLock.writeLock().lock();
+        try {
+            this.log=log;
+            for(ConcurrentLibrary shard:shards) shard.setLog(log);
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+    }
+
+    // function which finds the shard of a bookId: the last one whose lowest bookId is not greater (call with the read lock)
+    private int route(int bookId){
+        int low=0;
+        int high=lowBookIds.length-1;
+        while(low<high){
+            int mid=(low+high+1)>>>1;
+            if(lowBookIds[mid]<=bookId) low=mid;
+            else high=mid-1;
+        }
+        return low;
+    }
+
+    // function to find the highest bookId of shard i
+    private int highBookId(int i){
+        return i+1<lowBookIds.length?lowBookIds[i+1]-1:Integer.MAX_VALUE;
+    }
+
+    int shardCount(){
+        shardLock.readLock().lock();
+        try {
+            return shards.length;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    int[] shardSizes(){
+        shardLock.readLock().lock();
+        try {
+            int[] sizes=new int[shards.length];
+            for(int i=0;i<shards.length;++i) sizes[i]=shards[i].size();
+            return sizes;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(int bookId){
+        shardLock.readLock().lock();
+        try {
+            return shards[route(bookId)].contains(bookId);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public int colorFlipCount(){
+        shardLock.readLock().lock();
+        try {
+            int count=0;
+            for(ConcurrentLibrary shard:shards) count+=shard.colorFlipCount();
+            return count;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    // function which adds up the shapes of the shards: books, rotations, flips and heap sizes are summed,
+    // height and black height are the largest of the shards
+    public void readTreeStats(LibraryStats.TreeStats stats){
+        shardLock.readLock().lock();
+        try {
+            stats.reservationSizes=new long[33];
+            for(ConcurrentLibrary shard:shards){
+                LibraryStats.TreeStats shardStats=new LibraryStats.TreeStats();
+                shard.readTreeStats(shardStats);
+                stats.books+=shardStats.books;
+                stats.height=Math.max(stats.height,shardStats.height);
+                stats.blackHeight=Math.max(stats.blackHeight,shardStats.blackHeight);
+                stats.leftRotations+=shardStats.leftRotations;
+                stats.rightRotations+=shardStats.rightRotations;
+                stats.colorFlips+=shardStats.colorFlips;
+                for(int i=0;i<stats.reservationSizes.length;++i) stats.reservationSizes[i]+=shardStats.reservationSizes[i];
+            }
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public boolean readBook(int bookId, BookVisitor visitor){
+        shardLock.readLock().lock();
+        try {
+            return shards[route(bookId)].readBook(bookId,visitor);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    // function which finds the shard holding rank k by skipping the sizes of the shards before it
+    public boolean readKth(int k, BookVisitor visitor){
+        shardLock.readLock().lock();
+        try {
+            for(ConcurrentLibrary shard:shards){
+                if(k<1) return false;
+                int size=shard.size();
+                if(k<=size) return shard.readKth(k,visitor);
+                k-=size;
+            }
+            return false;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public int countBooks(int lowBookId, int highBookId){
+        shardLock.readLock().lock();
+        try {
+            int count=0;
+            for(int i=route(lowBookId);i<shards.length && lowBookIds[i]<=highBookId;++i) count+=shards[i].countBooks(lowBookId,highBookId);
+            return count;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public int bookRank(int bookId){
+        shardLock.readLock().lock();
+        try {
+            int i=route(bookId);
+            int rank=shards[i].bookRank(bookId);
+            if(rank==0) return 0;
+            for(int j=0;j<i;++j) rank+=shards[j].size();
+            return rank;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    // function which reads the range from the shards it overlaps, in bookId order, until limit books are visited
+    public int readRange(int lowBookId, int highBookId, int limit, BookVisitor visitor){
+        shardLock.readLock().lock();
+        try {
+            int count=0;
+            for(int i=route(lowBookId);i<shards.length && lowBookIds[i]<=highBookId && count<limit;++i){
+                count+=shards[i].readRange(Math.max(lowBookId,lowBookIds[i]),Math.min(highBookId,highBookId(i)),limit-count,visitor);
+            }
+            return count;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public void readByAuthor(String authorName, BookVisitor visitor){
+        shardLock.readLock().lock();
+        try {
+            for(ConcurrentLibrary shard:shards) shard.readByAuthor(authorName,visitor);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    // function which collects the matching titles of all shards, orders them by title and bookId and then reads the books
+    public void readByTitlePrefix(String prefix, BookVisitor visitor){
+        shardLock.readLock().lock();
+        try {
+            List<byte[]> titles=new ArrayList<>(); // copies, the slot of a title is reused once its book is deleted
+            List<Integer> bookIds=new ArrayList<>();
+            for(ConcurrentLibrary shard:shards){
+                shard.readByTitlePrefix(prefix,node -> {
+                    titles.add(BookStrings.titleBytes(node));
+                    bookIds.add(node.bookId);
+                });
+            }
+            Integer[] order=new Integer[titles.size()];
+            for(int i=0;i<order.length;++i) order[i]=i;
+            Arrays.sort(order,(i,j) -> {
+                byte[] title1=titles.get(i);
+                byte[] title2=titles.get(j);
+                int compare=BookStrings.compareBytes(title1,0,title1.length,title2,0,title2.length); // the order of CatalogIndex.TITLE_ORDER
+                return compare!=0?compare:Integer.compare(bookIds.get(i),bookIds.get(j));
+            });
+            for(int i:order){
+                int bookId=bookIds.get(i);
+                shards[route(bookId)].readBook(bookId,visitor);
+            }
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    // function which finds the floor in the shard of targetBookId or the closest non empty shard to the left of it,
+    // the ceiling in the same way to the right, and reads the closer one (both on a tie)
+    public void readClosest(int targetBookId, BookVisitor visitor){
+        shardLock.readLock().lock();
+        try {
+            int shard=route(targetBookId);
+            long floor=shards[shard].floorBookId(targetBookId);
+            for(int i=shard-1;i>=0 && floor==Long.MIN_VALUE;--i) floor=shards[i].floorBookId(Integer.MAX_VALUE);
+            if(floor==targetBookId){
+                shards[shard].readBook(targetBookId,visitor);
+                return;
+            }
+            long ceiling=shards[shard].ceilingBookId(targetBookId);
+            for(int i=shard+1;i<shards.length && ceiling==Long.MAX_VALUE;++i) ceiling=shards[i].ceilingBookId(Integer.MIN_VALUE);
+            long floorDiff=floor==Long.MIN_VALUE?Long.MAX_VALUE:targetBookId-floor;
+            long ceilingDiff=ceiling==Long.MAX_VALUE?Long.MAX_VALUE:ceiling-targetBookId;
+            if(floor!=Long.MIN_VALUE && floorDiff<=ceilingDiff) shards[route((int)floor)].readBook((int)floor,visitor);
+            if(ceiling!=Long.MAX_VALUE && ceilingDiff<=floorDiff) shards[route((int)ceiling)].readBook((int)ceiling,visitor);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public void insert(int bookId, String bookName, String authorName, boolean available){
+        boolean full;
+        boolean rebalance;
+        shardLock.readLock().lock();
+        try {
+            ConcurrentLibrary shard=shards[route(bookId)];
+            shard.insert(bookId,bookName,authorName,available);
+            full=shard.size()>maxShardSize;
+            rebalance=evenRanges;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+        if(full && rebalance) rebalance();
+        else if(full) split(bookId);
+    }
+
+    // function which splits the batch by shard and bulk inserts every part into its shard
+    public void bulkInsert(InsertBatch batch){
+        List<Integer> fullShards=new ArrayList<>();
+        boolean rebalance;
+        shardLock.readLock().lock();
+        try {
+            rebalance=evenRanges;
+            InsertBatch[] parts=new InsertBatch[shards.length];
+            for(int i=0;i<batch.size();++i){
+                int shard=route(batch.bookIds[i]);
+                if(parts[shard]==null) parts[shard]=new InsertBatch();
+                parts[shard].add(batch.bookIds[i],batch.bookNames[i],batch.authorNames[i],batch.available[i]);
+            }
+            for(int shard=0;shard<shards.length;++shard){
+                if(parts[shard]==null) continue;
+                shards[shard].bulkInsert(parts[shard]);
+                if(shards[shard].size()>maxShardSize) fullShards.add(lowBookIds[shard]);
+            }
+        } finally {
+            shardLock.readLock().unlock();
+        }
+        if(rebalance) rebalance(); // the books of a catalog or a run of inserts, enough to choose the ranges from
+        for(int lowBookId:fullShards) split(lowBookId);
+    }
+
+    // function to save the books of all shards to one snapshot file, as one balanced tree (restoring it with --shards
+    // splits that tree into shards again), the write lock keeps every shard as it was until the command log is restarted
+    public int snapshot(String fileName) throws IOException{
+        shardLock.writeLock().lock();
+        try {
+            return LibrarySnapshot.write(nodesInOrder(),colorFlipCount(),fileName,log);
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+    }
+
+    public String delete(int bookId){
+        String patronsList;
+        boolean small;
+        shardLock.readLock().lock();
+        try {
+            int shard=route(bookId);
+            patronsList=shards[shard].delete(bookId);
+            small=shards.length>minShardCount && shard+1<shards.length && shards[shard].size()+shards[shard+1].size()<maxShardSize/4;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+        if(small) merge(bookId);
+        return patronsList;
+    }
+
+    public int borrowBook(int patronId, int bookId, int patronPriority){
+        shardLock.readLock().lock();
+        try {
+            return shards[route(bookId)].borrowBook(patronId,bookId,patronPriority);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public int returnBook(int patronId, int bookId){
+        shardLock.readLock().lock();
+        try {
+            return shards[route(bookId)].returnBook(patronId,bookId);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    // the patron index of every shard has the books of that shard, so the books of a patron are the ones of all shards
+    // in shard order (which is bookId order)
+    public int[] borrowedBooks(int patronId){
+        shardLock.readLock().lock();
+        try {
+            int[] books=new int[0];
+            for(ConcurrentLibrary shard:shards) books=concat(books,shard.borrowedBooks(patronId));
+            return books;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public int[] reservedBooks(int patronId){
+        shardLock.readLock().lock();
+        try {
+            int[] books=new int[0];
+            for(ConcurrentLibrary shard:shards) books=concat(books,shard.reservedBooks(patronId));
+            return books;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public int[] cancelAllReservations(int patronId){
+        shardLock.readLock().lock();
+        try {
+            int[] books=new int[0];
+            for(ConcurrentLibrary shard:shards) books=concat(books,shard.cancelAllReservations(patronId));
+            return books;
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    public boolean cancelReservations(int patronId, int bookId){
+        shardLock.readLock().lock();
+        try {
+            return shards[route(bookId)].cancelReservations(patronId,bookId);
+        } finally {
+            shardLock.readLock().unlock();
+        }
+    }
+
+    private static int[] concat(int[] first, int[] second){
+        if(second.length==0) return first;
+        int[] result=Arrays.copyOf(first,first.length+second.length);
+        System.arraycopy(second,0,result,first.length,second.length);
+        return result;
+    }
+
+    // function to collect the books of all shards in bookId order (call with the write lock, so none of them changes)
+    private RedBlackTreeNode[] nodesInOrder(){
+        RedBlackTreeNode[] nodes=new RedBlackTreeNode[0];
+        for(ConcurrentLibrary shard:shards){
+            RedBlackTreeNode[] shardNodes=((RedBlackTree)shard.index).nodesInOrder();
+            int size=nodes.length;
+            nodes=Arrays.copyOf(nodes,size+shardNodes.length);
+            System.arraycopy(shardNodes,0,nodes,size,shardNodes.length);
+        }
+        return nodes;
+    }
+
+    // function which replaces the equal ranges of a library created empty by ranges with equal numbers of books, once
+    // it has a book for every shard (the shards are rebuilt balanced, as by a split)
+    private void rebalance(){
+        shardLock.writeLock().lock();
+        try {
+            if(!evenRanges) return; // another thread rebalanced it already
+            RedBlackTreeNode[] nodes=nodesInOrder();
+            if(nodes.length<shards.length) return;
+            buildShards(nodes,shards.length,colorFlipCount());
+            evenRanges=false;
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+    }
+
+    // function which splits the shard of bookId at its median bookId, if it is still too big
+    // (the write lock keeps every other command out of the shards, so their trees can be used directly, newShard makes
+    // every shard a red black tree)
+    private void split(int bookId){
+        shardLock.writeLock().lock();
+        try {
+            int i=route(bookId);
+            RedBlackTree tree=(RedBlackTree)shards[i].index;
+            if(tree.size()<=maxShardSize) return; // another thread split it already
+            RedBlackTreeNode[] nodes=tree.nodesInOrder();
+            int mid=nodes.length/2;
+            ConcurrentLibrary left=newShard(nodes,0,mid,tree.colorFlipCount());
+            ConcurrentLibrary right=newShard(nodes,mid,nodes.length,0);
+            shards=insertAt(shards,i+1,right);
+            shards[i]=left;
+            int[] lows=new int[lowBookIds.length+1];
+            System.arraycopy(lowBookIds,0,lows,0,i+1);
+            lows[i+1]=nodes[mid].bookId;
+            System.arraycopy(lowBookIds,i+1,lows,i+2,lowBookIds.length-i-1);
+            lowBookIds=lows;
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+    }
+
+    // function which merges the shard of bookId with its right neighbour, if they are still small enough together
+    private void merge(int bookId){
+        shardLock.writeLock().lock();
+        try {
+            int i=route(bookId);
+            if(i+1>=shards.length || shards.length<=minShardCount) return;
+            RedBlackTree left=(RedBlackTree)shards[i].index;
+            RedBlackTree right=(RedBlackTree)shards[i+1].index;
+            if(left.size()+right.size()>=maxShardSize/4) return; // another thread changed them meanwhile
+            RedBlackTreeNode[] leftNodes=left.nodesInOrder();
+            RedBlackTreeNode[] rightNodes=right.nodesInOrder();
+            RedBlackTreeNode[] nodes=Arrays.copyOf(leftNodes,leftNodes.length+rightNodes.length);
+            System.arraycopy(rightNodes,0,nodes,leftNodes.length,rightNodes.length);
+            shards[i]=newShard(nodes,0,nodes.length,left.colorFlipCount()+right.colorFlipCount());
+            ConcurrentLibrary[] merged=new ConcurrentLibrary[shards.length-1];
+            System.arraycopy(shards,0,merged,0,i+1);
+            System.arraycopy(shards,i+2,merged,i+1,shards.length-i-2);
+            shards=merged;
+            int[] lows=new int[lowBookIds.length-1];
+            System.arraycopy(lowBookIds,0,lows,0,i+1);
+            System.arraycopy(lowBookIds,i+2,lows,i+1,lowBookIds.length-i-2);
+            lowBookIds=lows;
+        } finally {
+            shardLock.writeLock().unlock();
+        }
+    }
+
+    private static ConcurrentLibrary[] insertAt(ConcurrentLibrary[] shards, int index, ConcurrentLibrary shard){
+        ConcurrentLibrary[] result=new ConcurrentLibrary[shards.length+1];
+        System.arraycopy(shards,0,result,0,index);
+        result[index]=shard;
+        System.arraycopy(shards,index,result,index+1,shards.length-index);
+        return result;
+    }
+}
+
+// OutputWriter class which writes the output of the commands to the output stream as it is produced
+// text, numbers and book records are encoded straight into a byte buffer (no String.format or temporary Strings) which is
+// written to the stream when it is full, after every flushEvery commands (0 means never) and when the writer is closed
+// the bytes are the same as a Writer with the default charset and line separator would write
+// the buffers are pooled, so sessions which come and go do not allocate a new one every time
+
+class OutputWriter {
+    private static final int BUFFER_SIZE=1<<16;
+    private static final ArrayDeque<byte[]> BUFFER_POOL=new ArrayDeque<>();
+    private static final Charset CHARSET=Charset.defaultCharset();
+    private static final byte[] LINE_SEPARATOR=System.lineSeparator().getBytes(CHARSET);
+    private static final String ASCII_PROBE=" \"[],.!:=-09AZaz";
+    // ASCII characters can be copied byte by byte if the default charset encodes them as themselves (UTF-8, ISO-8859-1, ...)
+    private static final boolean ASCII_COMPATIBLE=Arrays.equals(ASCII_PROBE.getBytes(CHARSET),ASCII_PROBE.getBytes(StandardCharsets.US_ASCII));
+
+    private final OutputStream out;
+    private final int flushEvery;
+    private int commandsSinceFlush=0;
+    private byte[] buffer;
+    private int position=0;
+    private long streamBytes=0; // bytes written to out
+    private CommandLog log; // if set, the buffer is only written once the commands logged so far are durable
+
+    OutputWriter(OutputStream out, int flushEvery){
+        this.out=out;
+        this.flushEvery=flushEvery;
+        synchronized (BUFFER_POOL) {
+            buffer=BUFFER_POOL.poll();
+        }
+        if(buffer==null) buffer=new byte[BUFFER_SIZE];
+    }
+
+    // function to write one output line
+    void add(String line){
+        append(line).newLine();
+    }
+
+    OutputWriter append(String text){
+        int length=text.length();
+        if(!ASCII_COMPATIBLE) return appendBytes(text.getBytes(CHARSET));
+        for(int i=0;i<length;++i){
+            char c=text.charAt(i);
+            if(c>=0x80) return appendEncoded(text,i);
+            if(position==buffer.length) writeBuffer();
+            buffer[position++]=(byte)c;
+        }
+        return this;
+    }
+
+    // function which encodes the rest of a text from index on with the charset (it has non ASCII characters)
+    private OutputWriter appendEncoded(String text, int index){
+        return appendBytes(text.substring(index).getBytes(CHARSET));
+    }
+
+    OutputWriter appendBytes(byte[] bytes){
+        return appendBytes(bytes,0,bytes.length);
+    }
+
+    OutputWriter appendBytes(byte[] bytes, int offset, int count){
+        for(int end=offset+count;offset<end;){
+            if(position==buffer.length) writeBuffer();
+            int length=Math.min(end-offset,buffer.length-position);
+            System.arraycopy(bytes,offset,buffer,position,length);
+            position+=length;
+            offset+=length;
+        }
+        return this;
+    }
+
+    // function which appends UTF-8 bytes, copied as they are if the charset is UTF-8 and decoded otherwise
+    OutputWriter appendUtf8(byte[] bytes, int offset, int count){
+        if(CHARSET.equals(StandardCharsets.UTF_8)) return appendBytes(bytes,offset,count);
+        return append(new String(bytes,offset,count,StandardCharsets.UTF_8));
+    }
+
+    // function to get the number of bytes written so far, including those still in the buffer
+    long written(){
+        return streamBytes+position;
+    }
+
+    OutputWriter append(char c){
+        if(c>=0x80 || !ASCII_COMPATIBLE) return append(String.valueOf(c));
+        if(position==buffer.length) writeBuffer();
+        buffer[position++]=(byte)c;
+        return this;
+    }
+
+    // function which writes the decimal digits of a number straight into the buffer
+    OutputWriter append(int value){
+        return append((long)value);
+    }
+
+    OutputWriter append(long value){
+        if(!ASCII_COMPATIBLE || value==Long.MIN_VALUE) return append(Long.toString(value));
+        if(buffer.length-position<20) writeBuffer(); // at most a sign and 19 digits
+        long number=value;
+        if(number<0){
+            buffer[position++]='-';
+            number=-number;
+        }
+        int end=position+digits(number);
+        for(int i=end-1;i>=position;--i){
+            buffer[i]=(byte)('0'+number%10);
+            number/=10;
+        }
+        position=end;
+        return this;
+    }
+
+    private static int digits(long number){
+        int count=1;
+        while(number>=10){
+            number/=10;
+            count++;
+        }
+        return count;
+    }
+
+    OutputWriter newLine(){
+        return appendBytes(LINE_SEPARATOR);
+    }
+
+    // function which holds back the output until the changes it may report are forced to the command log
+    void syncWith(CommandLog log){
+        this.log=log;
+    }
+
+    private void writeBuffer(){
+        if(log!=null && position>0) log.awaitDurable();
+        try {
+            out.write(buffer,0,position);
+            streamBytes+=position;
+            position=0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // function called after every command, flushes the output according to the flush policy
+    void commandDone(){
+        if(flushEvery>0 && ++commandsSinceFlush>=flushEvery){
+            commandsSinceFlush=0;
+            flush();
+        }
+    }
+
+    void flush(){
+        writeBuffer();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void close() throws IOException{
+        try {
+            flush();
+        } finally {
+            out.close();
+            synchronized (BUFFER_POOL) {
+                if(BUFFER_POOL.size()<64) BUFFER_POOL.push(buffer);
+            }
+            buffer=null;
+        }
+    }
+}
+
+// LibraryStats class which records a latency histogram for every operation, when enabled with --stats
+// a histogram has one bucket per power of two nanoseconds, so recording a latency is a few atomic increments
+// and several sessions can share one LibraryStats; percentiles are reported as the upper bound of their bucket
+
+class LibraryStats {
+    static final int BUCKETS=64;
+    static final int[] REPORTED={CommandParser.INSERT_BOOK,CommandParser.BORROW_BOOK,CommandParser.RETURN_BOOK,CommandParser.DELETE_BOOK,
+            CommandParser.PRINT_BOOKS,CommandParser.FIND_CLOSEST_BOOK}; // operations whose latencies are reported
+    private final AtomicLongArray buckets=new AtomicLongArray(CommandParser.OPERATIONS.length*BUCKETS); // buckets of operation op start at op*BUCKETS
+    private final AtomicLongArray totalNanos=new AtomicLongArray(CommandParser.OPERATIONS.length);
+    private final AtomicLongArray maxNanos=new AtomicLongArray(CommandParser.OPERATIONS.length);
+
+    // function to record the latency of one command
+    void record(int operation, long nanos){
+        buckets.incrementAndGet(operation*BUCKETS+64-Long.numberOfLeadingZeros(nanos));
+        totalNanos.addAndGet(operation,nanos);
+        long max=maxNanos.get(operation);
+        while(nanos>max && !maxNanos.compareAndSet(operation,max,nanos)) max=maxNanos.get(operation);
+    }
+
+    // function which returns the upper bound in nanoseconds of the bucket holding the given fraction of the latencies
+    private long percentile(int operation, long count, double fraction){
+        long rank=Math.max(1,(long)Math.ceil(count*fraction));
+        long seen=0;
+        for(int bucket=0;bucket<BUCKETS;++bucket){
+            seen+=buckets.get(operation*BUCKETS+bucket);
+            if(seen>=rank) return bucket==0?0:(1L<<bucket)-1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // function which outputs one line per reported operation: count, mean, p50, p99 and max latency in microseconds
+    void appendTo(OutputWriter out){
+        for(int operation:REPORTED){
+            long count=0;
+            for(int bucket=0;bucket<BUCKETS;++bucket) count+=buckets.get(operation*BUCKETS+bucket);
+            out.append(CommandParser.OPERATIONS[operation]).append(": Count = ").append(count);
+            if(count>0){
+                long max=maxNanos.get(operation);
+                out.append(", Mean = ").append(micros(totalNanos.get(operation)/count))
+                        .append(", P50 <= ").append(micros(Math.min(max,percentile(operation,count,0.50))))
+                        .append(", P99 <= ").append(micros(Math.min(max,percentile(operation,count,0.99))))
+                        .append(", Max = ").append(micros(max));
+            }
+            out.newLine();
+        }
+    }
+
+    // function which formats nanoseconds as microseconds with one decimal
+    private static String micros(long nanos){
+        return (nanos/1000)+"."+(nanos%1000/100)+"us";
+    }
+
+    // TreeStats class which holds the shape of the tree at one point in time (filled by ConcurrentLibrary.readTreeStats)
+    static class TreeStats {
+        int books;
+        int height;
+        int blackHeight;
+        long leftRotations;
+        long rightRotations;
+        int colorFlips;
+        long[] reservationSizes;
+
+        void appendTo(OutputWriter out){
+            out.append("Books = ").append(books).newLine();
+            out.append("Height = ").append(height).append(", Black Height = ").append(blackHeight).newLine();
+            out.append("Rotations = ").append(leftRotations+rightRotations).append(" (Left = ").append(leftRotations)
+                    .append(", Right = ").append(rightRotations).append(')').newLine();
+            out.append("Colour Flip Count: ").append(colorFlips).newLine();
+            out.append("Reservation Heap Sizes: 0 = ").append(reservationSizes[0]);
+            for(int i=1;i<reservationSizes.length;++i){
+                if(reservationSizes[i]==0) continue;
+                int low=1<<(i-1);
+                int high=(int)((1L<<i)-1);
+                out.append(", ").append(low);
+                if(high>low) out.append('-').append(high);
+                out.append(" = ").append(reservationSizes[i]);
+            }
+            out.newLine();
+        }
+    }
+}
+
+// CommandParser class which parses one command such as BorrowBook(2001, 2, 3) directly from the bytes of the input
+// (the memory mapped input file or the buffer of a stream, see CommandReader)
+// the operation name is looked up in a hash table of known operations, integer arguments are parsed in place
+// and quoted string arguments are only remembered as offsets, so parsing a command creates no Strings
+// the grammar is ASCII, so the input charset (the default charset, as with OutputWriter) must encode ASCII characters
+// as themselves, like UTF-8 and ISO-8859-1 do; only the string arguments a command stores are decoded
+
+class CommandParser {
+    // operation codes, they are the indexes of the command handlers in the dispatch table
+    static final int PRINT_BOOK=0;
+    static final int PRINT_BOOKS=1;
+    static final int INSERT_BOOK=2;
+    static final int BORROW_BOOK=3;
+    static final int RETURN_BOOK=4;
+    static final int DELETE_BOOK=5;
+    static final int FIND_CLOSEST_BOOK=6;
+    static final int COLOR_FLIP_COUNT=7;
+    static final int QUIT=8;
+    static final int SNAPSHOT=9;
+    static final int PRINT_BOOKS_BY_AUTHOR=10;
+    static final int FIND_BOOKS_BY_TITLE_PREFIX=11;
+    static final int STATS=12;
+    static final int COUNT_BOOKS=13;
+    static final int BOOK_RANK=14;
+    static final int KTH_BOOK=15;
+    static final int PRINT_PATRON=16;
+    static final int CANCEL_ALL_RESERVATIONS=17;
+    static final String[] OPERATIONS={"PrintBook","PrintBooks","InsertBook","BorrowBook","ReturnBook","DeleteBook","FindClosestBook","ColorFlipCount","Quit",
+            "Snapshot","PrintBooksByAuthor","FindBooksByTitlePrefix","Stats",
+            "CountBooks","BookRank","KthBook","PrintPatron","CancelAllReservations"};
+    static final int[] INT_ARGUMENTS={1,2,1,3,2,1,1,0,0,0,0,0,0,2,1,1,1,1}; // minimum number of integer arguments of every operation
+    static final int[] STRING_ARGUMENTS={0,0,3,0,0,0,0,0,0,1,1,1,0,0,0,0,0,0}; // minimum number of quoted string arguments of every operation
+
+    private static final Charset CHARSET=Charset.defaultCharset();
+    private static final byte[][] OPERATION_NAMES=new byte[OPERATIONS.length][];
+    private static final int[] OPERATION_TABLE=new int[64]; // open addressing table of operation code + 1 by name hash (0 is empty)
+    static {
+        for(int op=0;op<OPERATIONS.length;++op){
+            OPERATION_NAMES[op]=OPERATIONS[op].getBytes(StandardCharsets.US_ASCII);
+            int slot=hash(ByteBuffer.wrap(OPERATION_NAMES[op]),0,OPERATION_NAMES[op].length)&(OPERATION_TABLE.length-1);
+            while(OPERATION_TABLE[slot]!=0) slot=(slot+1)&(OPERATION_TABLE.length-1);
+            OPERATION_TABLE[slot]=op+1;
+        }
+    }
+
+    int operation; // operation code of the parsed command, -1 if the operation is unknown
+    private ByteBuffer buffer;
+    private byte[] scratch=new byte[256]; // bytes of a string argument which is decoded from a mapped buffer
+    private int[] ints=new int[8]; // integer arguments in order
+    private int intCount;
+    private int[] stringStarts=new int[8]; // quoted string arguments in order, as [start,end) offsets into buffer
+    private int[] stringEnds=new int[8];
+    private int stringCount;
+
+    private static int hash(ByteBuffer bytes,int start,int end){
+        int h=0;
+        for(int i=start;i<end;++i) h=31*h+bytes.get(i);
+        return h^(h>>>7);
+    }
+
+    // function to parse the command in buffer[start,end) (absolute positions, the position of buffer is not used),
+    // returns false if it is not a well formed command
+    boolean parse(ByteBuffer buffer,int start,int end){
+        this.buffer=buffer;
+        operation=-1;
+        intCount=0;
+        stringCount=0;
+        int i=skipSpaces(buffer,start,end);
+        int nameStart=i;
+        while(i<end && buffer.get(i)!='(' && buffer.get(i)!=' ' && buffer.get(i)!='\t') i++;
+        int nameEnd=i;
+        i=skipSpaces(buffer,i,end);
+        if(i==end || buffer.get(i)!='(') return false;
+        operation=lookup(buffer,nameStart,nameEnd);
+        i=skipSpaces(buffer,i+1,end);
+        if(i<end && buffer.get(i)==')') return hasArguments(); // no arguments
+        while(i<end){
+            if(buffer.get(i)=='"'){ // quoted string argument, kept as offsets into the buffer
+                int close=i+1;
+                while(close<end && buffer.get(close)!='"') close++;
+                if(close==end) return false;
+                if(stringCount==stringStarts.length){
+                    stringStarts=Arrays.copyOf(stringStarts,2*stringCount);
+                    stringEnds=Arrays.copyOf(stringEnds,2*stringCount);
+                }
+                stringStarts[stringCount]=i+1;
+                stringEnds[stringCount]=close;
+                stringCount++;
+                i=close+1;
+            }
+            else{ // integer argument, parsed digit by digit
+                boolean negative=false;
+                if(buffer.get(i)=='-' || buffer.get(i)=='+'){
+                    negative=buffer.get(i)=='-';
+                    i++;
+                }
+                if(i==end || buffer.get(i)<'0' || buffer.get(i)>'9') return false;
+                long value=0;
+                while(i<end && buffer.get(i)>='0' && buffer.get(i)<='9'){
+                    value=10*value+(buffer.get(i)-'0');
+                    if(value>(long)Integer.MAX_VALUE+1) return false;
+                    i++;
+                }
+                if(negative) value=-value;
+                if(value>Integer.MAX_VALUE) return false;
+                if(intCount==ints.length) ints=Arrays.copyOf(ints,2*intCount);
+                ints[intCount++]=(int)value;
+            }
+            i=skipSpaces(buffer,i,end);
+            if(i==end) return false;
+            if(buffer.get(i)==')') return hasArguments();
+            if(buffer.get(i)!=',') return false;
+            i=skipSpaces(buffer,i+1,end);
+        }
+        return false;
+    }
+
+    // function to set the command to an operation with only integer arguments, without parsing it
+    void set(int operation, int[] arguments, int offset, int count){
+        this.operation=operation;
+        if(ints.length<count) ints=new int[count];
+        System.arraycopy(arguments,offset,ints,0,count);
+        intCount=count;
+        stringCount=0;
+    }
+
+    // function which checks that a known operation got at least the arguments its handler reads
+    private boolean hasArguments(){
+        return operation<0 || (intCount>=INT_ARGUMENTS[operation] && stringCount>=STRING_ARGUMENTS[operation]);
+    }
+
+    private static int skipSpaces(ByteBuffer buffer,int i,int end){
+        while(i<end && (buffer.get(i)==' ' || buffer.get(i)=='\t')) i++;
+        return i;
+    }
+
+    // function which finds the operation code for the name in buffer[start,end) without creating a String
+    private static int lookup(ByteBuffer buffer,int start,int end){
+        int slot=hash(buffer,start,end)&(OPERATION_TABLE.length-1);
+        while(OPERATION_TABLE[slot]!=0){
+            int op=OPERATION_TABLE[slot]-1;
+            if(nameEquals(OPERATION_NAMES[op],buffer,start,end)) return op;
+            slot=(slot+1)&(OPERATION_TABLE.length-1);
+        }
+        return -1;
+    }
+
+    private static boolean nameEquals(byte[] name,ByteBuffer buffer,int start,int end){
+        if(end-start!=name.length) return false;
+        for(int i=0;i<name.length;++i){
+            if(buffer.get(start+i)!=name[i]) return false;
+        }
+        return true;
+    }
+
+    int intCount(){
+        return intCount;
+    }
+
+    int stringCount(){
+        return stringCount;
+    }
+
+    int intArg(int index){
+        return ints[index];
+    }
+
+    // function which decodes the String of a quoted string argument (only called when the value is stored)
+    // the bytes of a heap buffer are decoded where they are, those of a mapped buffer are copied to scratch first
+    String stringArg(int index){
+        int start=stringStarts[index];
+        int length=stringEnds[index]-start;
+        if(buffer.hasArray()) return new String(buffer.array(),buffer.arrayOffset()+start,length,CHARSET);
+        if(length>scratch.length) scratch=new byte[Math.max(length,2*scratch.length)];
+        for(int i=0;i<length;++i) scratch[i]=buffer.get(start+i);
+        return new String(scratch,0,length,CHARSET);
+    }
+
+    // function which compares a quoted string argument with a given ASCII value without creating a String
+    boolean stringArgEquals(int index,String value){
+        int start=stringStarts[index];
+        int length=stringEnds[index]-start;
+        if(length!=value.length()) return false;
+        for(int i=0;i<length;++i){
+            if(buffer.get(start+i)!=value.charAt(i)) return false;
+        }
+        return true;
+    }
+}
+
+// CommandReader class which reads the input one line at a time and hands the bytes of every line to the parser
+// an input file is memory mapped and parsed in place: lines and tokens are found in the mapped bytes, which are neither
+// copied nor decoded (except the strings a command stores), through windows of at most 1GB which move forward through
+// the file like the ones of LibrarySnapshot.MappedInput, so a file of any size is read without a buffer
+// any other stream (a client connection) is read into a reusable buffer
+
+class CommandReader {
+    private static final long WINDOW=1L<<30;
+    private final InputStream in; // the stream, null for a mapped file
+    private final FileChannel channel; // the mapped file, null for a stream
+    private ByteBuffer buffer;
+    private long windowStart=0; // offset of the window of a mapped file in the file
+    private int position=0; // start of the next line in buffer
+    private int limit=0; // end of the bytes read (or mapped) so far
+    private boolean endOfInput=false;
+
+    CommandReader(InputStream in){
+        this.in=in;
+        this.channel=null;
+        this.buffer=ByteBuffer.wrap(new byte[1<<16]);
+    }
+
+    private CommandReader(FileChannel channel){
+        this.in=null;
+        this.channel=channel;
+        this.buffer=ByteBuffer.allocate(0); // the first window is mapped by the first fill
+    }
+
+    // function to open an input file, memory mapped
+    static CommandReader open(String fileName) throws IOException{
+        return new CommandReader(FileChannel.open(Paths.get(fileName),StandardOpenOption.READ));
+    }
+
+    // function to parse the next non blank line into parser, returns false at the end of the input
+    boolean next(CommandParser parser) throws IOException{
+        while(true){
+            int lineEnd=position;
+            while(true){
+                while(lineEnd<limit && buffer.get(lineEnd)!='\n') lineEnd++;
+                if(lineEnd<limit || endOfInput) break;
+                lineEnd-=position;
+                fill();
+                lineEnd+=position;
+            }
+            if(position==limit && endOfInput) return false;
+            int lineStart=position;
+            position=lineEnd<limit?lineEnd+1:lineEnd;
+            if(lineEnd>lineStart && buffer.get(lineEnd-1)=='\r') lineEnd--;
+            if(isBlank(lineStart,lineEnd)) continue;
+            if(!parser.parse(buffer,lineStart,lineEnd)) parser.operation=-1; // malformed lines are ignored like unknown operations
+            return true;
+        }
+    }
+
+    // function which checks if a whole line is already read, so next does not have to wait for more input
+    boolean hasBufferedLine(){
+        for(int i=position;i<limit;++i){
+            if(buffer.get(i)=='\n') return true;
+        }
+        return endOfInput && position<limit;
+    }
+
+    private boolean isBlank(int start,int end){
+        for(int i=start;i<end;++i){
+            if(buffer.get(i)!=' ' && buffer.get(i)!='\t') return false;
+        }
+        return true;
+    }
+
+    // function which makes the unread part of the input start at the front of the buffer and adds more input after it
+    // a mapped file maps its next window from the start of the unread part, a stream moves the unread part to the front
+    // (growing the buffer for very long lines) and reads more
+    private void fill() throws IOException{
+        int remaining=limit-position;
+        if(channel!=null){
+            if(remaining==WINDOW) throw new IOException("Input line longer than "+WINDOW+" bytes");
+            windowStart+=position;
+            long size=channel.size();
+            buffer=channel.map(FileChannel.MapMode.READ_ONLY,windowStart,Math.min(WINDOW,size-windowStart));
+            position=0;
+            limit=buffer.limit();
+            endOfInput=windowStart+limit==size;
+            return;
+        }
+        byte[] bytes=buffer.array();
+        if(remaining==bytes.length){
+            bytes=Arrays.copyOf(bytes,2*bytes.length);
+            buffer=ByteBuffer.wrap(bytes);
+        }
+        else System.arraycopy(bytes,position,bytes,0,remaining);
+        position=0;
+        limit=remaining;
+        int read=in.read(bytes,limit,bytes.length-limit);
+        if(read<0) endOfInput=true;
+        else limit+=read;
+    }
+
+    void close() throws IOException{
+        if(channel!=null) channel.close();
+        else in.close();
+    }
+}
+
+// CommandHandler interface for the entries of the command dispatch table
+
+interface CommandHandler {
+    void execute(LibrarySession session, CommandParser command);
+}
+
+// LibrarySession class which executes the commands of one command stream against a shared library and writes their output
+// every stream (input file, terminal, ...) has its own session, so several of them can run at the same time
+
+class LibrarySession {
+    // command dispatch table, indexed by the operation codes of CommandParser
+    static final CommandHandler[] COMMANDS=new CommandHandler[CommandParser.OPERATIONS.length];
+    static {
+        COMMANDS[CommandParser.PRINT_BOOK]=(session, command) -> session.printBook(command.intArg(0));
+        COMMANDS[CommandParser.PRINT_BOOKS]=(session, command) -> {
+            if(command.intCount()>=3) session.printBooks(command.intArg(0),command.intArg(1),command.intArg(2),
+                    command.intCount()>=4?command.intArg(3):Integer.MIN_VALUE);
+            else session.printBooks(command.intArg(0),command.intArg(1));
+        };
+        COMMANDS[CommandParser.INSERT_BOOK]=(session, command) -> session.insertBook(command.intArg(0),command.stringArg(0),command.stringArg(1),
+                command.stringArgEquals(2,"Yes"));
+        COMMANDS[CommandParser.BORROW_BOOK]=(session, command) -> session.borrowBook(command.intArg(0),command.intArg(1),command.intArg(2));
+        COMMANDS[CommandParser.RETURN_BOOK]=(session, command) -> session.returnBook(command.intArg(0),command.intArg(1));
+        COMMANDS[CommandParser.DELETE_BOOK]=(session, command) -> session.deleteBook(command.intArg(0));
+        COMMANDS[CommandParser.FIND_CLOSEST_BOOK]=(session, command) -> session.findClosestBook(command.intArg(0));
+        COMMANDS[CommandParser.COLOR_FLIP_COUNT]=(session, command) -> session.colorFlipCount();
+        COMMANDS[CommandParser.QUIT]=(session, command) -> session.quit();
+        COMMANDS[CommandParser.SNAPSHOT]=(session, command) -> session.snapshot(command.stringArg(0));
+        COMMANDS[CommandParser.PRINT_BOOKS_BY_AUTHOR]=(session, command) -> session.printBooksByAuthor(command.stringArg(0));
+        COMMANDS[CommandParser.FIND_BOOKS_BY_TITLE_PREFIX]=(session, command) -> session.findBooksByTitlePrefix(command.stringArg(0));
+        COMMANDS[CommandParser.STATS]=(session, command) -> session.stats();
+        COMMANDS[CommandParser.COUNT_BOOKS]=(session, command) -> session.countBooks(command.intArg(0),command.intArg(1));
+        COMMANDS[CommandParser.BOOK_RANK]=(session, command) -> session.bookRank(command.intArg(0));
+        COMMANDS[CommandParser.KTH_BOOK]=(session, command) -> session.kthBook(command.intArg(0));
+        COMMANDS[CommandParser.PRINT_PATRON]=(session, command) -> session.printPatron(command.intArg(0));
+        COMMANDS[CommandParser.CANCEL_ALL_RESERVATIONS]=(session, command) -> session.cancelAllReservations(command.intArg(0));
+    }
+
+    final Library library;
+    final OutputWriter outputData; // outputData writer which writes the output after each operation
+    boolean isTerminate=false; // isTerminate flag for quit check
+    private final BookVisitor bookPrinter=this::printBookDetails;
+    private final BookVisitor bookListPrinter=this::printBookListEntry;
+    private InsertBatch pendingInserts; // InsertBook commands not yet added to the library in bulk insert mode (null otherwise)
+    static final int MAX_PENDING_INSERTS=1<<20;
+    private LibraryStats stats; // command latencies, null unless enabled with --stats
+
+    LibrarySession(Library library, OutputWriter outputData){
+        this.library=library;
+        this.outputData=outputData;
+    }
+
+    // function which turns on recording of command latencies into stats (it can be shared by several sessions)
+    void enableStats(LibraryStats stats){
+        this.stats=stats;
+    }
+
+    // function which turns on bulk insert mode: runs of consecutive InsertBook commands are collected and added
+    // with one bulkInsert when the next other command comes (InsertBook has no output, so the output does not change)
+    void enableBulkInsert(){
+        pendingInserts=new InsertBatch();
+    }
+
+    // function which executes one parsed command (unknown or malformed commands are ignored)
+    void execute(CommandParser command){
+        if(pendingInserts!=null && command.operation!=CommandParser.INSERT_BOOK) flushInserts();
+        if(command.operation<0){
+            outputData.commandDone();
+            return;
+        }
+        if(stats==null) COMMANDS[command.operation].execute(this,command);
+        else {
+            long start=System.nanoTime();
+            COMMANDS[command.operation].execute(this,command);
+            stats.record(command.operation,System.nanoTime()-start);
+        }
+        outputData.commandDone();
+    }
+
+    // function which adds the collected InsertBook commands to the library
+    void flushInserts(){
+        if(pendingInserts==null || pendingInserts.size()==0) return;
+        library.bulkInsert(pendingInserts);
+        pendingInserts.clear();
+    }
+
+    // function called at the end of the command stream
+    void close() throws IOException{
+        flushInserts();
+        outputData.close();
+    }
+
+    // outputs the data of a book
+    private void printBookDetails(BookRecord node){
+        outputData.append("BookID = ").append(node.bookId).newLine();
+        outputData.append("Title = \"");
+        BookStrings.appendTitle(outputData,node);
+        outputData.append('"').newLine();
+        outputData.append("Author = \"").append(node.author).append('"').newLine();
+        outputData.add(node.available?"Availability = \"Yes\"":"Availability = \"No\"");
+        if(node.borrowedBy==-1) outputData.add("BorrowedBy = None");
+        else outputData.append("BorrowedBy = ").append(node.borrowedBy).newLine();
+        outputData.append("Reservations = ");
+        if(node.reservationHeap==null) outputData.append("[]");
+        else node.reservationHeap.printHeap(outputData);
+        outputData.newLine();
+    }
+
+    // outputs the data of a book followed by an empty line, as every book in a list of books
+    private void printBookListEntry(BookRecord node){
+        printBookDetails(node);
+        outputData.add("");
+    }
+
+    // looks the book up in the library and outputs the data
+    public void printBook(int bookId){
+        if(!library.readBook(bookId,bookPrinter)){
+            outputData.append("Book ").append(bookId).append(" not found in the Library").newLine(); // if node not found, output book not found
+        }
+        outputData.add("");
+
+    }
+    // outputs the data of all books from lowBookId to highBookId
+    public void printBooks(int lowBookId, int highBookId){
+        library.readRange(lowBookId,highBookId,Integer.MAX_VALUE,bookListPrinter);
+
+    }
+    // outputs one page of books from lowBookId to highBookId: at most limit books with bookId greater than afterBookId
+    // (the next page starts after the last bookId printed)
+    public void printBooks(int lowBookId, int highBookId, int limit, int afterBookId){
+        if(afterBookId==Integer.MAX_VALUE) return;
+        library.readRange(Math.max(lowBookId,afterBookId+1),highBookId,limit,bookListPrinter);
+    }
+    // outputs the number of books from lowBookId to highBookId
+    public void countBooks(int lowBookId, int highBookId){
+        int count = library.countBooks(lowBookId,highBookId);
+        outputData.append("Book Count: ").append(count).newLine();
+        outputData.add("");
+    }
+    // outputs the rank of a book (its position in bookId order, starting from 1)
+    public void bookRank(int bookId){
+        int rank = library.bookRank(bookId);
+        if(rank==0) outputData.append("Book ").append(bookId).append(" not found in the Library").newLine();
+        else outputData.append("Book ").append(bookId).append(" Rank: ").append(rank).newLine();
+        outputData.add("");
+    }
+    // outputs the data of the k-th book in bookId order
+    public void kthBook(int k){
+        if(!library.readKth(k,bookPrinter)){
+            outputData.append("No Book at Rank ").append(k).append(" in the Library").newLine();
+        }
+        outputData.add("");
+    }
+    // outputs the books a patron has borrowed and the books the patron is waiting for
+    public void printPatron(int patronId){
+        outputData.append("Patron ").append(patronId).newLine();
+        outputData.append("Borrowed = ");
+        appendBookIds(library.borrowedBooks(patronId));
+        outputData.newLine();
+        outputData.append("Reservations = ");
+        appendBookIds(library.reservedBooks(patronId));
+        outputData.newLine();
+        outputData.add("");
+    }
+    // cancels all reservations of a patron and outputs the books they were for
+    public void cancelAllReservations(int patronId){
+        int[] bookIds = library.cancelAllReservations(patronId);
+        if(bookIds.length==0) outputData.append("Patron ").append(patronId).append(" has no Reservations").newLine();
+        else if(bookIds.length==1) outputData.append("Reservation made by Patron ").append(patronId).append(" for Book ").append(bookIds[0]).append(" has been cancelled!").newLine();
+        else{
+            outputData.append("Reservations made by Patron ").append(patronId).append(" for Books ");
+            appendBookIds(bookIds);
+            outputData.append(" have been cancelled!").newLine();
+        }
+        outputData.add("");
+    }
+    private void appendBookIds(int[] bookIds){
+        outputData.append('[');
+        for(int i=0;i<bookIds.length;++i){
+            if(i>0) outputData.append(',');
+            outputData.append(bookIds[i]);
+        }
+        outputData.append(']');
+    }
+    // outputs the data of all books of an author, in bookId order
+    public void printBooksByAuthor(String authorName){
+        library.readByAuthor(authorName,bookListPrinter);
+    }
+    // outputs the data of all books whose title starts with prefix, ordered by title
+    public void findBooksByTitlePrefix(String prefix){
+        library.readByTitlePrefix(prefix,bookListPrinter);
+    }
+    // invokes the insert(bookId,bookName,authorName,available) function on the library
+    public void insertBook(int bookId, String bookName, String authorName, boolean available){
+        if(pendingInserts==null){
+            library.insert(bookId,bookName,authorName,available);
+            return;
+        }
+        pendingInserts.add(bookId,bookName,authorName,available);
+        if(pendingInserts.size()>=MAX_PENDING_INSERTS) flushInserts();
+    }
+    // invokes the borrowBook(patronId,bookId,patronPriority) function on the library
+    public void borrowBook(int patronId, int bookId, int patronPriority){
+        int borrowResult = library.borrowBook(patronId,bookId,patronPriority);
+        if(borrowResult==RedBlackTree.BORROWED) outputData.append("Book ").append(bookId).append(" Borrowed by Patron ").append(patronId).newLine(); // if borrow is successful, output borrowed
+        else if(borrowResult==RedBlackTree.RESERVED) outputData.append("Book ").append(bookId).append(" Reserved by Patron ").append(patronId).newLine(); // if borrow is unsuccessful, output reserved
+        else outputData.append("Book ").append(bookId).append(" Waitlist is Full, Reservation by Patron ").append(patronId).append(" Rejected").newLine(); // if reservation heap is at its limit, output rejected
+        outputData.add("");
+    }
+    // invokes the returnBook(patronId,bookId) function on the library
+    //and outputs details about allocation of that book to first patron in heap if reservation exists
+    public void returnBook(int patronId, int bookId){
+        int patronId2 = library.returnBook(patronId,bookId);
+        outputData.append("Book ").append(bookId).append(" Returned by Patron ").append(patronId).newLine();
+        if(patronId2!=-1) {
+          outputData.add("");
+          outputData.append("Book ").append(bookId).append(" Allotted to Patron ").append(patronId2).newLine();
+        }
+        outputData.add("");
+    }
+    // invokes the delete(bookId) function on the library and outputs the patron list if any reservations exist for it
+    public void deleteBook(int bookId){
+      String patronsList = library.delete(bookId);
+      if(patronsList.equals("-1")){
+        outputData.append("Book ").append(bookId).append(" is no longer available.").newLine();
       }
       else{
         String patrons = patronsList.substring(1,patronsList.length()-1);
-        int patronLen = patrons.split(",").length;
-        if(patronLen == 1) outputData.add(String.format("Book %d is no longer available. Reservation made by Patron %s has been cancelled!",bookId,patrons));
-        else outputData.add(String.format("Book %d is no longer available. Reservations made by Patrons %s have been cancelled!",bookId,patrons));
+        int patronLen = 1;
+        for(int i=0;i<patrons.length();++i){
+          if(patrons.charAt(i)==',') patronLen++;
+        }
+        if(patronLen == 1) outputData.append("Book ").append(bookId).append(" is no longer available. Reservation made by Patron ").append(patrons).append(" has been cancelled!").newLine();
+        else outputData.append("Book ").append(bookId).append(" is no longer available. Reservations made by Patrons ").append(patrons).append(" have been cancelled!").newLine();
       }
       outputData.add("");
-      rbTree.updateColorFlips(); // after delete operation, call updateColorFlips() function on red black tree to count color flip changes
-
-    }
-    // invokes the findClosest(bookId) function on red black tree instance and outputs it
-    public static void findClosestBook(String input){
-        int targetBookId=Integer.parseInt(input.substring(input.indexOf("(") + 1, input.indexOf(")")));
-        List<RedBlackTreeNode>arr=rbTree.findClosest(targetBookId);
-        for(RedBlackTreeNode node:arr){
-          outputData.add(String.format("BookID = %d",node.bookId));
-          outputData.add(String.format("Title = \"%s\"",node.bookName));
-          outputData.add(String.format("Author = \"%s\"",node.authorName));
-          outputData.add(String.format("Availability = \"%s\"",node.availabilityStatus));
-          outputData.add("BorrowedBy = "+(node.borrowedBy==-1?"None":node.borrowedBy));
-          String reservationList = node.reservationHeap==null?"[]":node.reservationHeap.printHeap();
-          outputData.add(String.format("Reservations = %s",reservationList));
-          outputData.add("");
-        }
     }
-    // invokes the colorFlipCount() function on red black tree instance and outputs it
-    public static void colorFlipCount(){
-        int count = rbTree.colorFlipCount();
-        outputData.add(String.format("Colour Flip Count: %d",count));
+    // outputs the books whose bookId's are closest to targetBookId
+    public void findClosestBook(int targetBookId){
+        library.readClosest(targetBookId,bookListPrinter);
+    }
+    // invokes the colorFlipCount() function on the library and outputs it
+    public void colorFlipCount(){
+        int count = library.colorFlipCount();
+        outputData.append("Colour Flip Count: ").append(count).newLine();
         outputData.add("");    
     }
-    // terminates the program on quit
-    public static void quit(){
+    // saves the library to a snapshot file which can be restored at startup with --restore=<file>
+    public void snapshot(String fileName){
+        try {
+            int count = library.snapshot(fileName);
+            outputData.append("Snapshot of ").append(count).append(" Books Saved to \"").append(fileName).append('"').newLine();
+        } catch (IOException e) {
+            outputData.append("Snapshot to \"").append(fileName).append("\" Failed: ").append(String.valueOf(e.getMessage())).newLine();
+        }
+        outputData.add("");
+    }
+    // outputs the tree shape metrics and, if enabled, the command latency histograms
+    public void stats(){
+        LibraryStats.TreeStats treeStats=new LibraryStats.TreeStats();
+        library.readTreeStats(treeStats);
+        treeStats.appendTo(outputData);
+        if(stats==null) outputData.add("Latencies: disabled (run with --stats)");
+        else stats.appendTo(outputData);
+        outputData.add("");
+    }
+    // terminates the session on quit
+    public void quit(){
         outputData.add("Program Terminated!!");
         isTerminate=true;
     }
 
 }
+
+// ParallelBatch class which executes the commands of an input file on a ForkJoinPool with the same output as executing them in order
+// commands which touch a single book (PrintBook, BorrowBook, ReturnBook) or only read the shape of the tree (BookRank, CountBooks)
+// are collected in a window and partitioned by bookId, every partition executes its commands in input order on its own session
+// all other commands (inserts, deletes, range and closest queries, counts, ...) are barriers: the window is executed first and
+// then the barrier on the calling thread, so every command sees exactly the library it would see in sequential execution
+// the sessions of the partitions write to memory, and the outputs are copied to the real output in input order
+
+class ParallelBatch {
+    static final int WINDOW=1<<14; // maximum number of commands collected before they are executed
+    static final int MIN_PARALLEL=256; // windows with fewer commands are executed in order on the calling thread
+    static final int MAX_ARGUMENTS=3;
+    static final int[] BOOK_ARGUMENT=new int[CommandParser.OPERATIONS.length]; // index of the bookId argument, -1 for barriers
+    static {
+        Arrays.fill(BOOK_ARGUMENT,-1);
+        BOOK_ARGUMENT[CommandParser.PRINT_BOOK]=0;
+        BOOK_ARGUMENT[CommandParser.BORROW_BOOK]=1;
+        BOOK_ARGUMENT[CommandParser.RETURN_BOOK]=1;
+        BOOK_ARGUMENT[CommandParser.BOOK_RANK]=0;
+        BOOK_ARGUMENT[CommandParser.COUNT_BOOKS]=0;
+    }
+
+    private final LibrarySession session; // executes the barriers and writes the merged output
+    private final ForkJoinPool pool;
+    private final LibrarySession[] workers; // one session per partition, writing to outputs
+    private final CapturedOutput[] outputs;
+    private final CommandParser command=new CommandParser();
+    private final int[] operations=new int[WINDOW];
+    private final int[] arguments=new int[MAX_ARGUMENTS*WINDOW];
+    private final int[] argumentCounts=new int[WINDOW];
+    private final int[] partitionOf=new int[WINDOW];
+    private final int[] order=new int[WINDOW]; // window indexes grouped by partition, in input order within a partition
+    private final int[] partitionStarts;
+    private final long[] outputEnds=new long[WINDOW]; // end of the output of every command in the output of its partition
+    private final RuntimeException[] failures=new RuntimeException[WINDOW];
+    private int count=0;
+
+    ParallelBatch(LibrarySession session, int threads, LibraryStats stats){
+        this.session=session;
+        this.pool=new ForkJoinPool(threads);
+        int partitionCount=4*threads; // more partitions than threads, so a partition with many commands is not the only one left
+        workers=new LibrarySession[partitionCount];
+        outputs=new CapturedOutput[partitionCount];
+        partitionStarts=new int[partitionCount+1];
+        for(int p=0;p<partitionCount;++p){
+            outputs[p]=new CapturedOutput();
+            workers[p]=new LibrarySession(session.library,new OutputWriter(outputs[p],0));
+            if(stats!=null) workers[p].enableStats(stats);
+        }
+    }
+
+    // function which executes a parsed command: single book commands are collected, a barrier executes them and then itself
+    void execute(CommandParser parsed){
+        int op=parsed.operation;
+        if(op<0 || BOOK_ARGUMENT[op]<0){
+            executeWindow();
+            session.execute(parsed);
+            return;
+        }
+        int argumentCount=Math.min(parsed.intCount(),MAX_ARGUMENTS);
+        for(int i=0;i<argumentCount;++i) arguments[MAX_ARGUMENTS*count+i]=parsed.intArg(i);
+        operations[count]=op;
+        argumentCounts[count]=argumentCount;
+        partitionOf[count]=partition(parsed.intArg(BOOK_ARGUMENT[op]));
+        if(++count==WINDOW) executeWindow();
+    }
+
+    // function called at the end of the input
+    void finish(){
+        executeWindow();
+        pool.shutdown();
+    }
+
+    private int partition(int bookId){
+        return (((bookId*0x9E3779B9)>>>16)&0x7FFFFFFF)%workers.length;
+    }
+
+    // function which executes the collected commands and writes their output in input order
+    private void executeWindow(){
+        if(count==0) return;
+        session.flushInserts(); // the collected commands come after the pending inserts
+        // a failing command ends a sequential run, so no command after it may change the library: a window with a
+        // command which would fail is executed in order on the calling thread and stops at that command
+        if(count<MIN_PARALLEL || !canSucceed()){
+            for(int i=0;i<count;++i){
+                command.set(operations[i],arguments,MAX_ARGUMENTS*i,argumentCounts[i]);
+                session.execute(command);
+            }
+            count=0;
+            return;
+        }
+        // group the commands by partition with a counting sort, which keeps the input order within a partition
+        Arrays.fill(partitionStarts,0);
+        for(int i=0;i<count;++i) partitionStarts[partitionOf[i]+1]++;
+        for(int p=0;p<workers.length;++p) partitionStarts[p+1]+=partitionStarts[p];
+        int[] next=Arrays.copyOf(partitionStarts,workers.length);
+        for(int i=0;i<count;++i) order[next[partitionOf[i]]++]=i;
+        List<Callable<Void>> tasks=new ArrayList<>();
+        for(int p=0;p<workers.length;++p){
+            if(partitionStarts[p]==partitionStarts[p+1]) continue;
+            int partition=p;
+            tasks.add(() -> {
+                executePartition(partition);
+                return null;
+            });
+        }
+        pool.invokeAll(tasks);
+        // copy the outputs in input order, a command which failed ends the output like it ends a sequential run
+        long[] outputStarts=new long[workers.length];
+        for(int i=0;i<count;++i){
+            int p=partitionOf[i];
+            if(failures[i]!=null){
+                RuntimeException failure=failures[i];
+                Arrays.fill(failures,0,count,null);
+                count=0;
+                throw failure;
+            }
+            session.outputData.appendBytes(outputs[p].bytes(),(int)outputStarts[p],(int)(outputEnds[i]-outputStarts[p]));
+            session.outputData.commandDone();
+            outputStarts[p]=outputEnds[i];
+        }
+        count=0;
+    }
+
+    // function which checks that no collected command can fail: BorrowBook and ReturnBook need their book to exist
+    // (the window holds no inserts or deletes, so this stays true while it is executed)
+    private boolean canSucceed(){
+        for(int i=0;i<count;++i){
+            int op=operations[i];
+            if(op!=CommandParser.BORROW_BOOK && op!=CommandParser.RETURN_BOOK) continue;
+            if(argumentCounts[i]<=BOOK_ARGUMENT[op] || !session.library.contains(arguments[MAX_ARGUMENTS*i+BOOK_ARGUMENT[op]])) return false;
+        }
+        return true;
+    }
+
+    // function which executes the commands of one partition in input order on its session
+    private void executePartition(int p){
+        LibrarySession worker=workers[p];
+        CommandParser workerCommand=new CommandParser();
+        outputs[p].reset();
+        long base=worker.outputData.written();
+        for(int k=partitionStarts[p];k<partitionStarts[p+1];++k){
+            int i=order[k];
+            workerCommand.set(operations[i],arguments,MAX_ARGUMENTS*i,argumentCounts[i]);
+            try {
+                worker.execute(workerCommand);
+            } catch (RuntimeException e) {
+                failures[i]=e;
+                break;
+            } finally {
+                outputEnds[i]=worker.outputData.written()-base;
+            }
+        }
+        worker.outputData.flush();
+    }
+
+    // CapturedOutput class which keeps the output of a partition in memory
+    static class CapturedOutput extends ByteArrayOutputStream {
+        byte[] bytes(){
+            return buf;
+        }
+    }
+}
+
+// LibraryServer class which serves the commands of many clients connected to a local TCP port, all against one library
+// every connection is a command stream with its own session and is served by its own (virtual if available) thread
+// clients can pipeline: a session keeps executing the lines already received and only flushes its output when it runs
+// out of them, so a batch of commands sent at once gets its responses back in one write, in the same order
+// Quit() ends the connection of the client, not the server
+
+class LibraryServer {
+    final Library library;
+    boolean bulkInsert=false;
+    LibraryStats stats; // shared by all sessions, null if disabled
+    CommandLog log; // command log of the library, null if disabled
+
+    LibraryServer(Library library){
+        this.library=library;
+    }
+
+    // function which accepts connections on the loopback address until the server socket fails
+    void serve(int port) throws IOException{
+        ExecutorService executor=newThreadPerTaskExecutor();
+        try (ServerSocket serverSocket=new ServerSocket(port,128,InetAddress.getLoopbackAddress())) {
+            while(true){
+                Socket socket=serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // function which creates an executor starting a virtual thread per connection (Java 21+, looked up by reflection
+    // so the program still builds and runs on older versions), or else a cached pool of platform threads
+    static ExecutorService newThreadPerTaskExecutor(){
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // function which runs the session of one connection
+    void handle(Socket socket){
+        try (Socket client=socket) {
+            client.setTcpNoDelay(true);
+            OutputWriter output=new OutputWriter(client.getOutputStream(),0);
+            if(log!=null) output.syncWith(log);
+            LibrarySession session=new LibrarySession(library,output);
+            if(bulkInsert) session.enableBulkInsert();
+            if(stats!=null) session.enableStats(stats);
+            CommandReader commandReader=new CommandReader(client.getInputStream());
+            CommandParser command=new CommandParser();
+            try {
+                while(!session.isTerminate && commandReader.next(command)){
+                    try {
+                        session.execute(command);
+                    } catch (RuntimeException e) {
+                        // a failing command (such as BorrowBook of a book which does not exist) only fails itself
+                        session.outputData.append("Command Failed: ").append(e.toString()).newLine();
+                        session.outputData.add("");
+                    }
+                    if(!commandReader.hasBufferedLine()){
+                        session.flushInserts(); // other clients see the inserts before this one waits for more commands
+                        session.outputData.flush();
+                    }
+                }
+            } finally {
+                session.close();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // the client disconnected, its session is over
+        }
+    }
+}
+
+// main class - start point of program
+// usage: java gatorLibrary <input file> | --server=<port> [--flush-every=N] [--reservation-limit=N] [--bulk-insert] [--catalog=<file>] [--restore=<file>] [--stats] [--parallel[=N]]
+//        [--shards=N] [--max-shard-size=N] [--persistent] [--index=rbtree|bptree] [--wal=<file>] [--wal-sync-ms=N]
+public class gatorLibrary {
+    // main function
+    public static void main(String[] args) {
+        try {
+            String inputFileName=null; // the input file name is the first command line argument which is not an option
+            int serverPort=-1; // port of server mode, -1 runs the input file
+            boolean persistent=Arrays.asList(args).contains("--persistent"); // lock-free readers over versions of the tree
+            RedBlackTree rbTree=persistent?new PersistentTree():new RedBlackTree(); // create red black tree instance
+            int flushEvery=0; // by default output is only flushed when the write buffer is full and at the end
+            boolean bulkInsert=false;
+            String catalogFileName=null;
+            String snapshotFileName=null;
+            LibraryStats stats=null;
+            int threads=0; // threads of parallel batch mode, 0 executes the commands in order on the main thread
+            int shards=0; // number of shards of a sharded library, 0 keeps all books in one tree
+            int maxShardSize=1<<20;
+            String logFileName=null;
+            int logSyncMillis=5; // latency bound of the group commit of the command log
+            String indexName="rbtree"; // book index of a ConcurrentLibrary, rbtree or bptree
+            for(int i=0;i<args.length;++i){
+                if(!args[i].startsWith("--") && inputFileName==null) inputFileName=args[i];
+                if(args[i].startsWith("--server=")) serverPort=Integer.parseInt(args[i].substring("--server=".length()));
+                if(args[i].startsWith("--flush-every=")) flushEvery=Integer.parseInt(args[i].substring("--flush-every=".length()));
+                if(args[i].startsWith("--reservation-limit=")) rbTree.reservationLimit=Integer.parseInt(args[i].substring("--reservation-limit=".length()));
+                if(args[i].equals("--bulk-insert")) bulkInsert=true;
+                if(args[i].startsWith("--catalog=")) catalogFileName=args[i].substring("--catalog=".length());
+                if(args[i].startsWith("--restore=")) snapshotFileName=args[i].substring("--restore=".length());
+                if(args[i].equals("--stats")) stats=new LibraryStats();
+                if(args[i].equals("--parallel")) threads=Runtime.getRuntime().availableProcessors();
+                if(args[i].startsWith("--parallel=")) threads=Integer.parseInt(args[i].substring("--parallel=".length()));
+                if(args[i].startsWith("--shards=")) shards=Integer.parseInt(args[i].substring("--shards=".length()));
+                if(args[i].startsWith("--max-shard-size=")) maxShardSize=Integer.parseInt(args[i].substring("--max-shard-size=".length()));
+                if(args[i].startsWith("--wal=")) logFileName=args[i].substring("--wal=".length());
+                if(args[i].startsWith("--wal-sync-ms=")) logSyncMillis=Integer.parseInt(args[i].substring("--wal-sync-ms=".length()));
+                if(args[i].startsWith("--index=")) indexName=args[i].substring("--index=".length());
+            }
+            if(!indexName.equals("rbtree") && !indexName.equals("bptree")) throw new IllegalArgumentException("Unknown index "+indexName);
+            CommandLog log=logFileName==null?null:CommandLog.open(logFileName,logSyncMillis);
+            boolean replay=log!=null && log.hasHistory();
+            if(replay) snapshotFileName=log.snapshotFileName; // a log with a history starts from its own snapshot, --restore and --catalog only start a new log
+            if(snapshotFileName!=null) LibrarySnapshot.read(rbTree,snapshotFileName); // restore the saved library instead of replaying its history
+            Library tree;
+            if(persistent) tree=new PersistentLibrary((PersistentTree)rbTree); // --shards is ignored, shards are ConcurrentLibrary trees
+            else if(indexName.equals("bptree")) tree=new ConcurrentLibrary(bPlusTree(rbTree)); // --shards is ignored too
+            else if(shards>0) tree=new ShardedLibrary(rbTree,shards,maxShardSize);
+            else tree=new ConcurrentLibrary(rbTree);
+            if(replay) log.replay(tree); // the commands logged by the last run
+            else if(log!=null && snapshotFileName!=null) log.restart(snapshotFileName);
+            if(log!=null) tree.setLog(log); // every change from now on is logged
+            Library library=tree;
+            CommandParser command = new CommandParser();
+            if(catalogFileName!=null && !replay) loadCatalog(library,catalogFileName,command);
+            if(serverPort>=0){
+                LibraryServer server=new LibraryServer(library);
+                server.bulkInsert=bulkInsert;
+                server.stats=stats;
+                server.log=log;
+                if(stats!=null){
+                    LibraryStats serverStats=stats;
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                            printStats(library,serverStats);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }));
+                }
+                server.serve(serverPort); // runs until the process is stopped
+                return;
+            }
+            int inlen=inputFileName.length();
+            String outputFileName=inputFileName.substring(0,inlen-4)+"_output_file.txt"; // output file name would be concatenation of input file name + "_output_file.txt"
+            OutputWriter output=new OutputWriter(new FileOutputStream(outputFileName, true), flushEvery);
+            if(log!=null) output.syncWith(log);
+            LibrarySession session=new LibrarySession(library,output);
+            if(bulkInsert) session.enableBulkInsert();
+            if(stats!=null) session.enableStats(stats);
+            CommandReader commandReader = CommandReader.open(inputFileName); // memory mapped, parsed in place
+
+            // read the input one command at a time and execute it through the dispatch table of the session
+            // the output of every operation is written right away, so neither the input nor the output is kept in memory
+            if(threads>0){
+                ParallelBatch batch=new ParallelBatch(session,threads,stats);
+                while (!session.isTerminate && commandReader.next(command)) {
+                    batch.execute(command);
+                }
+                batch.finish();
+            }
+            else{
+                while (!session.isTerminate && commandReader.next(command)) {
+                    session.execute(command);
+                }
+            }
+            commandReader.close();
+            session.close();
+            if(log!=null) log.close();
+            if(stats!=null) printStats(library,stats); // the statistics of the whole run go to the standard error, not to the output file
+
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    // function which makes a B+ tree index out of the books of a red black tree (the restored snapshot, if there is one)
+    // the leaves get plain BookRecord copies of the nodes, so they do not keep the tree links and color of every node
+    static BPlusTree bPlusTree(RedBlackTree tree){
+        BPlusTree index=new BPlusTree();
+        index.reservationLimit=tree.reservationLimit;
+        RedBlackTreeNode[] nodes=tree.nodesInOrder();
+        BookRecord[] books=new BookRecord[nodes.length];
+        for(int i=0;i<nodes.length;++i) books[i]=new BookRecord(nodes[i]);
+        index.build(books,0,books.length);
+        return index;
+    }
+
+    // function which writes the tree shape and latency statistics to the standard error
+    static void printStats(Library library, LibraryStats stats) throws IOException{
+        OutputWriter out=new OutputWriter(new FileOutputStream(FileDescriptor.err),0);
+        LibraryStats.TreeStats treeStats=new LibraryStats.TreeStats();
+        library.readTreeStats(treeStats);
+        treeStats.appendTo(out);
+        stats.appendTo(out);
+        out.close();
+    }
+
+    // function to load a catalog file of InsertBook lines (best sorted by bookId) with one bulk insert before the commands run
+    public static void loadCatalog(Library library, String catalogFileName, CommandParser command) throws IOException{
+        InsertBatch batch=new InsertBatch();
+        CommandReader catalogReader=CommandReader.open(catalogFileName);
+        while(catalogReader.next(command)){
+            if(command.operation==CommandParser.INSERT_BOOK) batch.add(command.intArg(0),command.stringArg(0),command.stringArg(1),command.stringArgEquals(2,"Yes"));
+        }
+        catalogReader.close();
+        library.bulkInsert(batch);
+    }
+}
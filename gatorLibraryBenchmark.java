@@ -0,0 +1,375 @@
+import java.io.*;
+import java.util.*;
+
+// Benchmark harness for the RedBlackTree (or with --index=bptree the BPlusTree) and MinHeap operations used by gatorLibrary
+// every benchmark runs warmup iterations and then measured iterations of a fixed time, and reports the mean time per
+// operation with the standard deviation over the measured iterations
+// parameters: tree size, key distribution (sequential, random or zipfian lookups over random keys) and reservation depth
+// the memory benchmarks report the heap bytes per book of the index instead of a time, they only run when named
+// usage: java gatorLibraryBenchmark [--sizes=1000,100000] [--distributions=sequential,random,zipfian] [--depths=1,16,1024]
+//        [--benchmarks=insert,delete,search,rangeSearch,findClosest,heapInsert,heapRemoveMin,memory,memoryChurn] [--warmup=3] [--iterations=5]
+//        [--time=200] [--index=rbtree|bptree] [--csv=<file>] [--compare=<csv file> [--threshold=10]]
+// --csv saves the results, --compare checks them against saved results and exits with 1 if a benchmark got slower than the threshold (percent)
+
+public class gatorLibraryBenchmark {
+    static final String[] TREE_BENCHMARKS={"insert","delete","search","rangeSearch","findClosest"};
+    static final String[] HEAP_BENCHMARKS={"heapInsert","heapRemoveMin"};
+    static final String[] MEMORY_BENCHMARKS={"memory","memoryChurn"}; // not run by default
+    static final int CHURN_ROUNDS=3; // times memoryChurn replaces every book
+    static final int BATCH=1000; // operations per timed batch (at most half of the tree for the tree benchmarks)
+    static final int RANGE_WIDTH=100; // number of books in every rangeSearch
+    static long sink; // results of the benchmarked operations end up here, so the JIT can not remove them
+
+    static int warmupIterations=3;
+    static int measuredIterations=5;
+    static long iterationNanos=200_000_000L;
+
+    public static void main(String[] args) throws IOException {
+        List<Integer> sizes=Arrays.asList(1_000,10_000,100_000,1_000_000,10_000_000);
+        List<String> distributions=Arrays.asList("sequential","random","zipfian");
+        List<Integer> depths=Arrays.asList(1,16,1024);
+        Set<String> benchmarks=new LinkedHashSet<>(Arrays.asList(TREE_BENCHMARKS));
+        benchmarks.addAll(Arrays.asList(HEAP_BENCHMARKS));
+        String csvFileName=null;
+        String compareFileName=null;
+        double threshold=10;
+        String index="rbtree";
+        for(String arg:args){
+            String value=arg.substring(arg.indexOf('=')+1);
+            if(arg.startsWith("--sizes=")) sizes=parseInts(value);
+            else if(arg.startsWith("--distributions=")) distributions=Arrays.asList(value.split(","));
+            else if(arg.startsWith("--depths=")) depths=parseInts(value);
+            else if(arg.startsWith("--benchmarks=")) benchmarks=new LinkedHashSet<>(Arrays.asList(value.split(",")));
+            else if(arg.startsWith("--warmup=")) warmupIterations=Integer.parseInt(value);
+            else if(arg.startsWith("--iterations=")) measuredIterations=Integer.parseInt(value);
+            else if(arg.startsWith("--time=")) iterationNanos=Long.parseLong(value)*1_000_000L;
+            else if(arg.startsWith("--csv=")) csvFileName=value;
+            else if(arg.startsWith("--compare=")) compareFileName=value;
+            else if(arg.startsWith("--threshold=")) threshold=Double.parseDouble(value);
+            else if(arg.startsWith("--index=")) index=value;
+            else throw new IllegalArgumentException("Unknown option "+arg);
+        }
+
+        Map<String,double[]> results=new LinkedHashMap<>(); // benchmark key -> {mean ns/op, standard deviation}
+        System.out.printf("%-14s %10s %-11s %6s %12s %10s%n","Benchmark","Size","Keys","Depth","ns/op","+-");
+        for(int size:sizes){
+            for(String distribution:distributions){
+                TreeFixture fixture=null;
+                for(String benchmark:TREE_BENCHMARKS){
+                    if(!benchmarks.contains(benchmark)) continue;
+                    if(fixture==null) fixture=new TreeFixture(size,distribution,index);
+                    report(results,benchmark,size,distribution,0,fixture.run(benchmark));
+                }
+            }
+        }
+        for(int depth:depths){
+            for(String benchmark:HEAP_BENCHMARKS){
+                if(!benchmarks.contains(benchmark)) continue;
+                report(results,benchmark,0,"-",depth,new HeapFixture(depth).run(benchmark));
+            }
+        }
+        for(int size:sizes){
+            for(String benchmark:MEMORY_BENCHMARKS){
+                if(!benchmarks.contains(benchmark)) continue;
+                double[] result=measureMemory(benchmark,size,index);
+                results.put(benchmark+","+size+",random,0",result);
+                System.out.printf("%-14s %10d %-11s %6d %12.1f bytes/book%n",benchmark,size,"random",0,result[0]);
+            }
+        }
+        if(csvFileName!=null) writeCsv(csvFileName,results);
+        if(compareFileName!=null && !compare(compareFileName,results,threshold)) System.exit(1);
+    }
+
+    static List<Integer> parseInts(String value){
+        List<Integer> list=new ArrayList<>();
+        for(String part:value.split(",")) list.add(Integer.parseInt(part.trim()));
+        return list;
+    }
+
+    static void report(Map<String,double[]> results, String benchmark, int size, String distribution, int depth, double[] result){
+        results.put(benchmark+","+size+","+distribution+","+depth,result);
+        System.out.printf("%-14s %10d %-11s %6d %12.1f %10.1f%n",benchmark,size,distribution,depth,result[0],result[1]);
+    }
+
+    // Batch interface for the timed part of a benchmark, it runs a batch of operations
+    interface Batch {
+        void run();
+    }
+
+    // function which runs warmup and measured iterations, every iteration runs batches until iterationNanos passed
+    // setup runs before every batch and is not timed (it prepares the tree or heap for the next batch)
+    static double[] measure(Runnable setup, Batch batch, int batchSize){
+        for(int i=0;i<warmupIterations;++i) iteration(setup,batch,batchSize);
+        double[] nanosPerOp=new double[measuredIterations];
+        double mean=0;
+        for(int i=0;i<measuredIterations;++i){
+            nanosPerOp[i]=iteration(setup,batch,batchSize);
+            mean+=nanosPerOp[i];
+        }
+        mean/=measuredIterations;
+        double variance=0;
+        for(double value:nanosPerOp) variance+=(value-mean)*(value-mean);
+        return new double[]{mean,measuredIterations>1?Math.sqrt(variance/(measuredIterations-1)):0};
+    }
+
+    static double iteration(Runnable setup, Batch batch, int batchSize){
+        long timed=0;
+        long operations=0;
+        long end=System.nanoTime()+iterationNanos;
+        while(System.nanoTime()<end){
+            setup.run();
+            long start=System.nanoTime();
+            batch.run();
+            timed+=System.nanoTime()-start;
+            operations+=batchSize;
+        }
+        return (double)timed/operations;
+    }
+
+    static BookIndex newIndex(String index){
+        if(index.equals("rbtree")) return new RedBlackTree();
+        if(index.equals("bptree")) return new BPlusTree();
+        throw new IllegalArgumentException("Unknown index "+index);
+    }
+
+    // function which measures the heap bytes per book of an index of size books (with its catalog and patron indexes)
+    // inserted in random order, with titles of 24 characters and 2500 authors; memoryChurn then replaces every book
+    // CHURN_ROUNDS times by deleting it and inserting it with a new title of the same length, so it shows how much of
+    // the space of deleted titles is used again
+    static double[] measureMemory(String benchmark, int size, String index){
+        if(!benchmark.equals("memory") && !benchmark.equals("memoryChurn")) throw new IllegalArgumentException("Unknown benchmark "+benchmark);
+        int[] keys=new int[size];
+        for(int i=0;i<size;++i) keys[i]=i;
+        shuffle(keys,new Random(42));
+        long before=usedHeap();
+        BookIndex tree=newIndex(index);
+        for(int key:keys) tree.insert(key,title(0,key),"Author"+(key%2500),true);
+        if(benchmark.equals("memoryChurn")){
+            for(int round=1;round<=CHURN_ROUNDS;++round){
+                for(int key:keys){
+                    tree.delete(key);
+                    tree.insert(key,title(round,key),"Author"+(key%2500),true);
+                }
+            }
+        }
+        long used=usedHeap()-before;
+        sink+=tree.size();
+        return new double[]{(double)used/size,0};
+    }
+
+    static String title(int round, int key){
+        return String.format(Locale.ROOT,"Collected Work %d %07d",round,key);
+    }
+
+    // function which collects the garbage and returns the heap in use
+    static long usedHeap(){
+        Runtime runtime=Runtime.getRuntime();
+        for(int i=0;i<3;++i) System.gc();
+        return runtime.totalMemory()-runtime.freeMemory();
+    }
+
+    // TreeFixture class which holds a tree of a given size and the keys the benchmarks use
+    // the tree holds the even numbers from keys[], so odd numbers are misses for findClosest
+    static class TreeFixture {
+        final BookIndex tree;
+        final int[] keys; // the bookIds in the tree, in insertion order
+        final int[] lookups; // indexes into keys[] the lookups use, sequential, uniform or zipfian
+        final int batchSize; // BATCH, or half the tree for a smaller tree, so a batch of distinct keys can always be picked
+        final int[] batchKeys;
+        boolean batchDeleted=false; // true while the books of batchKeys are not in the tree
+        int next=0;
+
+        TreeFixture(int size, String distribution, String index){
+            tree=newIndex(index);
+            if(size<2) throw new IllegalArgumentException("Tree size must be at least 2");
+            batchSize=Math.min(BATCH,size/2);
+            batchKeys=new int[batchSize];
+            keys=new int[size];
+            for(int i=0;i<size;++i) keys[i]=2*i;
+            Random random=new Random(42);
+            if(!distribution.equals("sequential")) shuffle(keys,random);
+            for(int key:keys) tree.insert(key,"Book"+key,"Author"+(key%1000),true);
+            lookups=new int[1<<20];
+            ZipfianGenerator zipfian=distribution.equals("zipfian")?new ZipfianGenerator(size,0.99,random):null;
+            for(int i=0;i<lookups.length;++i){
+                if(distribution.equals("sequential")) lookups[i]=i%size;
+                else if(zipfian!=null) lookups[i]=zipfian.next();
+                else lookups[i]=random.nextInt(size);
+            }
+        }
+
+        int nextKey(){
+            int key=keys[lookups[next]];
+            next=(next+1)&(lookups.length-1);
+            return key;
+        }
+
+        // function which picks the keys of the next batch (distinct, so every one can be deleted and inserted once)
+        void pickBatchKeys(){
+            Set<Integer> picked=new HashSet<>();
+            for(int i=0;i<batchSize;++i){
+                int key=nextKey();
+                for(int step=1;!picked.add(key);++step) key=keys[(int)((key/2L+step)%keys.length)]; // a popular key again, take a neighbour
+                batchKeys[i]=key;
+            }
+        }
+
+        // function which inserts the books of the last batch back if a benchmark deleted them
+        void restoreBatch(){
+            if(!batchDeleted) return;
+            for(int key:batchKeys) tree.insert(key,"Book"+key,"Author"+(key%1000),true);
+            batchDeleted=false;
+        }
+
+        double[] run(String benchmark){
+            try {
+                return runBenchmark(benchmark);
+            } finally {
+                restoreBatch();
+            }
+        }
+
+        double[] runBenchmark(String benchmark){
+            switch(benchmark){
+                case "insert": // delete a batch of books untimed, then time inserting them back
+                    return measure(() -> {
+                        pickBatchKeys();
+                        for(int key:batchKeys) tree.delete(key);
+                    }, () -> {
+                        for(int key:batchKeys) tree.insert(key,"Book"+key,"Author"+(key%1000),true);
+                    },batchSize);
+                case "delete": // time deleting a batch of books, they are inserted back untimed before the next batch
+                    return measure(() -> {
+                        restoreBatch();
+                        pickBatchKeys();
+                        batchDeleted=true; // by the timed batch
+                    }, () -> {
+                        for(int key:batchKeys) sink+=tree.delete(key).length();
+                    },batchSize);
+                case "search":
+                    return measure(() -> {}, () -> {
+                        for(int i=0;i<batchSize;++i) sink+=tree.search(nextKey()).bookId;
+                    },batchSize);
+                case "rangeSearch":
+                    return measure(() -> {}, () -> {
+                        for(int i=0;i<batchSize;++i){
+                            int key=nextKey();
+                            sink+=tree.rangeSearch(key,key+2*RANGE_WIDTH,Integer.MAX_VALUE,node -> sink+=node.available?1:0);
+                        }
+                    },batchSize);
+                case "findClosest":
+                    return measure(() -> {}, () -> {
+                        for(int i=0;i<batchSize;++i) sink+=tree.findClosest(nextKey()+1).size();
+                    },batchSize);
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark "+benchmark);
+            }
+        }
+    }
+
+    // HeapFixture class which holds a reservation heap with a given number of waiting patrons
+    static class HeapFixture {
+        final MinHeap heap=new MinHeap(4,0);
+        final Random random=new Random(42);
+        final int depth;
+
+        HeapFixture(int depth){
+            this.depth=depth;
+            for(int i=0;i<depth;++i) heap.insert(i,random.nextInt(10));
+        }
+
+        double[] run(String benchmark){
+            switch(benchmark){
+                case "heapInsert": // time BATCH reservations on a heap of depth patrons, removed again untimed
+                    return measure(() -> {
+                        while(heap.size()>depth) heap.removeMin();
+                    }, () -> {
+                        for(int i=0;i<BATCH;++i) sink+=heap.insert(i,random.nextInt(10))?1:0;
+                    },BATCH);
+                case "heapRemoveMin": // time BATCH removals from a heap of depth+BATCH patrons
+                    return measure(() -> {
+                        while(heap.size()<depth+BATCH) heap.insert(heap.size(),random.nextInt(10));
+                    }, () -> {
+                        for(int i=0;i<BATCH;++i) sink+=heap.removeMin();
+                    },BATCH);
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark "+benchmark);
+            }
+        }
+    }
+
+    // ZipfianGenerator class which draws indexes 0..n-1 where index i has probability proportional to 1/(i+1)^theta
+    // (the rejection free method of Gray et al., "Quickly generating billion-record synthetic databases")
+    static class ZipfianGenerator {
+        final int n;
+        final double theta, alpha, zetan, eta;
+        final Random random;
+        final int[] permutation; // popular indexes are spread over the key space instead of being the first keys inserted
+
+        ZipfianGenerator(int n, double theta, Random random){
+            this.n=n;
+            this.theta=theta;
+            this.random=random;
+            double zeta2=1+Math.pow(0.5,theta);
+            double sum=0;
+            for(int i=1;i<=n;++i) sum+=1/Math.pow(i,theta);
+            zetan=sum;
+            alpha=1/(1-theta);
+            eta=(1-Math.pow(2.0/n,1-theta))/(1-zeta2/zetan);
+            permutation=new int[n];
+            for(int i=0;i<n;++i) permutation[i]=i;
+            shuffle(permutation,random);
+        }
+
+        int next(){
+            double u=random.nextDouble();
+            double uz=u*zetan;
+            int rank;
+            if(uz<1) rank=0;
+            else if(uz<1+Math.pow(0.5,theta)) rank=1;
+            else rank=(int)(n*Math.pow(eta*u-eta+1,alpha));
+            return permutation[Math.min(rank,n-1)];
+        }
+    }
+
+    static void shuffle(int[] array, Random random){
+        for(int i=array.length-1;i>0;--i){
+            int j=random.nextInt(i+1);
+            int temp=array[i];
+            array[i]=array[j];
+            array[j]=temp;
+        }
+    }
+
+    static void writeCsv(String fileName, Map<String,double[]> results) throws IOException {
+        try (PrintWriter writer=new PrintWriter(new FileWriter(fileName))) {
+            writer.println("benchmark,size,distribution,depth,nsPerOp,error");
+            for(Map.Entry<String,double[]> entry:results.entrySet()){
+                writer.printf(Locale.ROOT,"%s,%.3f,%.3f%n",entry.getKey(),entry.getValue()[0],entry.getValue()[1]);
+            }
+        }
+    }
+
+    // function which compares the results with saved ones, returns false if any benchmark is slower by more than threshold percent
+    static boolean compare(String fileName, Map<String,double[]> results, double threshold) throws IOException {
+        boolean ok=true;
+        try (BufferedReader reader=new BufferedReader(new FileReader(fileName))) {
+            reader.readLine(); // header
+            String line;
+            while((line=reader.readLine())!=null){
+                String[] parts=line.split(",");
+                String key=parts[0]+","+parts[1]+","+parts[2]+","+parts[3];
+                double[] result=results.get(key);
+                if(result==null) continue;
+                double baseline=Double.parseDouble(parts[4]);
+                double change=100*(result[0]-baseline)/baseline;
+                if(change>threshold){
+                    System.out.printf("REGRESSION %s: %.1f ns/op -> %.1f ns/op (%+.1f%%)%n",key,baseline,result[0],change);
+                    ok=false;
+                }
+            }
+        }
+        if(ok) System.out.println("No regressions above "+threshold+"%");
+        return ok;
+    }
+}
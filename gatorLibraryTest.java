@@ -0,0 +1,412 @@
+import java.io.*;
+import java.util.*;
+
+// Randomized checks of the indexes of gatorLibrary against simple reference implementations
+// every check runs random operations from a fixed seed and compares the index with its reference as it goes, a failure
+// names the check, the seed and what differed, so it can be run again with the same --seed
+// patrons: the PatronIndex of every library (rbtree, bptree, persistent, sharded) against a scan of all books
+// versions: every version a PersistentTree published stays exactly as it was while later operations run
+// bptree: the queries, inserts, deletes and bulk inserts of a BPlusTree against a TreeMap, and the shape of its nodes
+// shards: a ShardedLibrary created empty spreads its first bulk insert over all shards, saves them to a snapshot which
+// restores the same books, keeps the number of shards it was created with while books are deleted, and all its books
+// usage: java gatorLibraryTest [--checks=patrons,versions,bptree,shards] [--seed=42]
+// exits with 1 if a check failed
+
+public class gatorLibraryTest {
+    static final String[] CHECKS={"patrons","versions","bptree","shards"};
+
+    public static void main(String[] args){
+        List<String> checks=Arrays.asList(CHECKS);
+        long seed=42;
+        for(String arg:args){
+            String value=arg.substring(arg.indexOf('=')+1);
+            if(arg.startsWith("--checks=")) checks=Arrays.asList(value.split(","));
+            else if(arg.startsWith("--seed=")) seed=Long.parseLong(value);
+            else throw new IllegalArgumentException("Unknown option "+arg);
+        }
+        boolean failed=false;
+        for(String check:checks){
+            try {
+                run(check,new Random(seed));
+                System.out.println("OK   "+check);
+            } catch (AssertionError e) {
+                System.out.println("FAIL "+check+" (seed "+seed+"): "+e.getMessage());
+                failed=true;
+            }
+        }
+        if(failed) System.exit(1);
+    }
+
+    static void run(String check, Random random){
+        switch(check){
+            case "patrons":
+                checkPatrons(random);
+                break;
+            case "versions":
+                checkVersions(random);
+                break;
+            case "bptree":
+                checkBPlusTree(random);
+                break;
+            case "shards":
+                checkShards(random);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown check "+check);
+        }
+    }
+
+    static void check(boolean condition, String message){
+        if(!condition) throw new AssertionError(message);
+    }
+
+    static final int PATRON_BOOKS=300; // bookIds 0..PATRON_BOOKS-1, few enough that books are borrowed and reserved often
+    static final int PATRONS=50;
+    static final int PATRON_STEPS=20000;
+
+    // function which runs random inserts, bulk inserts, deletes, borrows, returns and cancellations on every kind of
+    // library and checks the books of every patron against a scan of all books every 500 steps
+    static void checkPatrons(Random random){
+        for(String kind:new String[]{"rbtree","bptree","persistent","sharded"}){
+            Library library;
+            if(kind.equals("rbtree")) library=new ConcurrentLibrary(new RedBlackTree());
+            else if(kind.equals("bptree")) library=new ConcurrentLibrary(new BPlusTree());
+            else if(kind.equals("persistent")) library=new PersistentLibrary(new PersistentTree());
+            else library=new ShardedLibrary(new RedBlackTree(),4,64); // small shards, so they are split and merged
+            for(int step=1;step<=PATRON_STEPS;++step){
+                int bookId=random.nextInt(PATRON_BOOKS);
+                int patronId=random.nextInt(PATRONS);
+                int operation=random.nextInt(100);
+                if(operation<15){
+                    library.insert(bookId,"Book"+bookId,"Author"+(bookId%7),true);
+                }
+                else if(operation<18){
+                    InsertBatch batch=new InsertBatch();
+                    for(int i=0;i<8;++i){
+                        int id=random.nextInt(PATRON_BOOKS);
+                        batch.add(id,"Book"+id,"Author"+(id%7),random.nextBoolean());
+                    }
+                    library.bulkInsert(batch);
+                }
+                else if(operation<25){
+                    library.delete(bookId);
+                }
+                else if(operation<60){
+                    if(library.contains(bookId)) library.borrowBook(patronId,bookId,1+random.nextInt(5));
+                }
+                else if(operation<85){
+                    if(!library.contains(bookId)) continue;
+                    int[] borrower={-1};
+                    library.readBook(bookId,node -> borrower[0]=node.borrowedBy);
+                    library.returnBook(borrower[0]!=-1 && random.nextInt(4)>0?borrower[0]:patronId,bookId);
+                }
+                else if(operation<90){
+                    library.cancelAllReservations(patronId);
+                }
+                else if(operation<95){
+                    library.cancelReservations(patronId,bookId);
+                }
+                if(step%500==0 || step==PATRON_STEPS) comparePatrons(library,kind+" after step "+step);
+            }
+        }
+    }
+
+    // function which finds the books of every patron by reading all books and compares them with the patron index
+    static void comparePatrons(Library library, String where){
+        List<List<Integer>> borrowed=new ArrayList<>();
+        List<List<Integer>> reserved=new ArrayList<>();
+        for(int i=0;i<PATRONS;++i){
+            borrowed.add(new ArrayList<>());
+            reserved.add(new ArrayList<>());
+        }
+        library.readRange(Integer.MIN_VALUE,Integer.MAX_VALUE,Integer.MAX_VALUE,node -> {
+            if(node.borrowedBy!=-1) borrowed.get(node.borrowedBy).add(node.bookId);
+            MinHeap heap=node.reservationHeap;
+            if(heap==null) return;
+            for(int i=0;i<heap.size();++i) reserved.get(heap.patronIdAt(i)).add(node.bookId);
+        });
+        for(int patronId=0;patronId<PATRONS;++patronId){
+            Collections.sort(reserved.get(patronId)); // books come in bookId order, a book reserved twice is there twice
+            check(borrowed.get(patronId).equals(toList(library.borrowedBooks(patronId))),
+                  where+": patron "+patronId+" borrowed "+toList(library.borrowedBooks(patronId))+", a scan finds "+borrowed.get(patronId));
+            check(reserved.get(patronId).equals(toList(library.reservedBooks(patronId))),
+                  where+": patron "+patronId+" reserved "+toList(library.reservedBooks(patronId))+", a scan finds "+reserved.get(patronId));
+        }
+    }
+
+    static final int VERSIONS=200;
+    static final int VERSION_STEPS=400; // operations between two saved versions
+    static final int VERSION_BOOKS=1000;
+
+    // function which saves the root of a PersistentTree every VERSION_STEPS random operations with a dump of everything
+    // in it, checks every 10 versions that all saved versions still give the same dump, and after every round that the
+    // newest holds the books of a TreeMap which ran the same inserts and deletes
+    static void checkVersions(Random random){
+        PersistentTree tree=new PersistentTree();
+        TreeMap<Integer,String> titles=new TreeMap<>();
+        List<RedBlackTreeNode> roots=new ArrayList<>();
+        List<List<String>> dumps=new ArrayList<>();
+        for(int version=0;version<VERSIONS;++version){
+            roots.add(tree.root);
+            dumps.add(dump(tree.root));
+            for(int step=0;step<VERSION_STEPS;++step){
+                int bookId=random.nextInt(VERSION_BOOKS);
+                int patronId=random.nextInt(20);
+                String title="Book"+bookId+"-"+version+"-"+step; // a new title every time, so a changed one shows
+                int operation=random.nextInt(100);
+                if(operation<30){
+                    tree.insert(bookId,title,"Author"+(bookId%13),true);
+                    titles.putIfAbsent(bookId,title);
+                }
+                else if(operation<32){
+                    InsertBatch batch=new InsertBatch(); // as big as the tree now and then, so the whole tree is rebuilt
+                    int count=random.nextInt(4)==0?Math.max(1,tree.size()):8;
+                    for(int i=0;i<count;++i){
+                        int id=random.nextInt(VERSION_BOOKS);
+                        batch.add(id,title+"-"+i,"Author"+(id%13),true);
+                    }
+                    tree.bulkInsert(batch);
+                    for(int i=0;i<count;++i) titles.putIfAbsent(batch.bookIds[i],batch.bookNames[i]);
+                }
+                else if(operation<55){
+                    tree.delete(bookId);
+                    titles.remove(bookId);
+                }
+                else if(!titles.containsKey(bookId)){
+                    continue;
+                }
+                else if(operation<80){
+                    tree.borrowBook(patronId,bookId,1+random.nextInt(5));
+                }
+                else if(operation<95){
+                    tree.returnBook(patronId,bookId);
+                }
+                else{
+                    tree.cancelReservations(patronId,bookId);
+                }
+            }
+            if(version%10==9){ // every saved version is read again now and then, as that takes O(VERSIONS^2) dumps
+                for(int i=0;i<roots.size();++i) check(dump(roots.get(i)).equals(dumps.get(i)),"version "+i+" changed by the operations up to version "+(version+1));
+            }
+            List<String> books=new ArrayList<>();
+            for(RedBlackTreeNode node:inorder(tree.root,new ArrayList<>())) books.add(node.bookId+" "+node.bookName());
+            List<String> expected=new ArrayList<>();
+            for(Map.Entry<Integer,String> entry:titles.entrySet()) expected.add(entry.getKey()+" "+entry.getValue());
+            check(books.equals(expected),"version "+(version+1)+" holds "+books.size()+" books, a TreeMap "+expected.size());
+        }
+    }
+
+    // function which lists every node of a version with everything in it, in bookId order
+    static List<String> dump(RedBlackTreeNode root){
+        List<String> lines=new ArrayList<>();
+        for(RedBlackTreeNode node:inorder(root,new ArrayList<>())){
+            StringBuilder line=new StringBuilder();
+            line.append(node.bookId).append(' ').append(node.bookName()).append(' ').append(node.authorName())
+                .append(' ').append(node.available).append(' ').append(node.borrowedBy).append(' ').append(node.color)
+                .append(' ').append(node.subtreeSize);
+            MinHeap heap=node.reservationHeap;
+            for(int i=0;heap!=null && i<heap.size();++i) line.append(' ').append(heap.patronIdAt(i)).append(':').append(heap.keyAt(i));
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    // the children of a shared node are valid in every version, its parent pointer is not, so a version is walked down
+    static List<RedBlackTreeNode> inorder(RedBlackTreeNode node, List<RedBlackTreeNode> nodes){
+        if(node==null) return nodes;
+        inorder(node.left,nodes);
+        nodes.add(node);
+        inorder(node.right,nodes);
+        return nodes;
+    }
+
+    static final int BPTREE_BOOKS=20000; // enough for three levels of nodes
+    static final int BPTREE_STEPS=100000;
+
+    // function which runs random inserts, deletes, bulk inserts (small ones and ones which rebuild the tree) and
+    // queries on a BPlusTree and a TreeMap, compares every query, and every 5000 steps all books and the node shape
+    static void checkBPlusTree(Random random){
+        BPlusTree tree=new BPlusTree();
+        TreeMap<Integer,String> books=new TreeMap<>();
+        boolean[] present=new boolean[BPTREE_BOOKS]; // the keys of books, counted for the rank queries a TreeMap has not
+        for(int step=1;step<=BPTREE_STEPS;++step){
+            int bookId=random.nextInt(BPTREE_BOOKS);
+            String where="step "+step+" bookId "+bookId;
+            int operation=random.nextInt(100);
+            if(operation<30){
+                tree.insert(bookId,"Book"+bookId+"-"+step,"Author"+(bookId%11),true);
+                books.putIfAbsent(bookId,"Book"+bookId+"-"+step);
+                present[bookId]=true;
+            }
+            else if(operation<55){
+                int size=tree.size();
+                tree.delete(bookId);
+                check(size-tree.size()==(books.remove(bookId)!=null?1:0),where+": delete left "+tree.size()+" books of "+size);
+                present[bookId]=false;
+            }
+            else if(operation<56){
+                InsertBatch batch=new InsertBatch(); // a tenth of the tree now and then, which is enough to rebuild it
+                int count=random.nextInt(5)==0?1+tree.size()/10:1+random.nextInt(50);
+                for(int i=0;i<count;++i){
+                    int id=random.nextInt(BPTREE_BOOKS);
+                    batch.add(id,"Book"+id+"-"+step+"-"+i,"Author"+(id%11),true);
+                    books.putIfAbsent(id,"Book"+id+"-"+step+"-"+i);
+                    present[id]=true;
+                }
+                tree.bulkInsert(batch);
+            }
+            else if(operation<64){
+                check(sameBook(tree.floor(bookId),books.floorKey(bookId)),where+": floor");
+            }
+            else if(operation<72){
+                check(sameBook(tree.ceiling(bookId),books.ceilingKey(bookId)),where+": ceiling");
+            }
+            else if(operation<80){
+                int expected=countLess(present,bookId);
+                check(tree.countLess(bookId)==expected,where+": countLess "+tree.countLess(bookId)+" instead of "+expected);
+            }
+            else if(operation<88){
+                int k=random.nextInt(books.size()+2); // 0 and size+1 are out of range
+                check(sameBook(tree.select(k),select(present,k)),where+": select("+k+")");
+            }
+            else if(operation<96){
+                int highBookId=bookId+random.nextInt(500);
+                int limit=random.nextInt(4)==0?random.nextInt(20):Integer.MAX_VALUE;
+                List<Integer> found=new ArrayList<>();
+                int count=tree.rangeSearch(bookId,highBookId,limit,node -> found.add(node.bookId));
+                List<Integer> expected=new ArrayList<>(books.subMap(bookId,true,highBookId,true).keySet());
+                if(expected.size()>limit) expected=expected.subList(0,limit);
+                check(found.equals(expected) && count==expected.size(),where+": rangeSearch to "+highBookId+" limit "+limit+" found "+found);
+            }
+            else{
+                BookRecord book=tree.search(bookId);
+                check(book==null?!books.containsKey(bookId):book.bookName().equals(books.get(bookId)),where+": search");
+            }
+            if(step%5000==0 || step==BPTREE_STEPS) compareBPlusTree(tree,books,"step "+step);
+        }
+    }
+
+    static int countLess(boolean[] present, int bookId){
+        int count=0;
+        for(int id=0;id<bookId;++id) count+=present[id]?1:0;
+        return count;
+    }
+
+    // function to get the bookId of rank k (1 for the smallest), null if k is out of range
+    static Integer select(boolean[] present, int k){
+        for(int id=0, rank=0;id<present.length && k>=1;++id){
+            if(present[id] && ++rank==k) return id;
+        }
+        return null;
+    }
+
+    static boolean sameBook(BookRecord book, Integer bookId){
+        return book==null?bookId==null:bookId!=null && book.bookId==bookId;
+    }
+
+    // function which compares all books of the tree with the TreeMap and checks the nodes: every node but the root is
+    // at least half full, keys are sorted and bound the keys under them, counts are the books under every child, and
+    // the leaves are all at the same depth and linked in order both ways
+    static void compareBPlusTree(BPlusTree tree, TreeMap<Integer,String> books, String where){
+        List<String> found=new ArrayList<>();
+        tree.rangeSearch(Integer.MIN_VALUE,Integer.MAX_VALUE,Integer.MAX_VALUE,node -> found.add(node.bookId+" "+node.bookName()));
+        List<String> expected=new ArrayList<>();
+        for(Map.Entry<Integer,String> entry:books.entrySet()) expected.add(entry.getKey()+" "+entry.getValue());
+        check(found.equals(expected),where+": the tree holds "+found.size()+" books, the TreeMap "+expected.size());
+        check(tree.size()==books.size(),where+": size "+tree.size());
+        List<BPlusTree.Node> leaves=new ArrayList<>();
+        check(checkNode(tree.root,true,Integer.MIN_VALUE,Integer.MAX_VALUE,1,tree.height,leaves,where)==books.size(),where+": counts");
+        for(int i=0;i<leaves.size();++i){
+            check(leaves.get(i).previous==(i==0?null:leaves.get(i-1)),where+": previous link of leaf "+i);
+            check(leaves.get(i).next==(i==leaves.size()-1?null:leaves.get(i+1)),where+": next link of leaf "+i);
+        }
+    }
+
+    // function which checks a node whose keys must be in [low, high] and returns the number of books under it
+    static int checkNode(BPlusTree.Node node, boolean root, int low, int high, int level, int height, List<BPlusTree.Node> leaves, String where){
+        check(root || node.size>=BPlusTree.MIN_FILL,where+": a node of level "+level+" holds "+node.size);
+        for(int i=0;i<node.size;++i){
+            check(node.keys[i]>=low && node.keys[i]<=high && (i==0 || node.keys[i-1]<node.keys[i]),where+": key "+node.keys[i]+" of level "+level);
+        }
+        if(node.isLeaf()){
+            check(level==height,where+": a leaf at level "+level+" of "+height);
+            leaves.add(node);
+            return node.size;
+        }
+        int count=0;
+        for(int i=0;i<node.size;++i){
+            int childHigh=i+1<node.size?node.keys[i+1]-1:high;
+            int childCount=checkNode(node.children[i],false,i==0?low:node.keys[i],childHigh,level+1,height,leaves,where);
+            check(childCount==node.counts[i],where+": count "+node.counts[i]+" of a child with "+childCount+" books");
+            count+=childCount;
+        }
+        return count;
+    }
+
+    static final int SHARD_BOOKS=2000;
+    static final int SHARDS=4;
+    static final int SHARD_STEPS=20000;
+
+    // function which bulk inserts books into an empty sharded library with the default shard size and checks that every
+    // shard gets as many and that a snapshot of it restores them, deletes them one by one, checking that it keeps its
+    // shards, and then runs random inserts and
+    // deletes on one with small shards, which split and merge, and checks that it never has fewer shards than it was
+    // created with; both are compared with a TreeSet as they go
+    static void checkShards(Random random){
+        ShardedLibrary library=new ShardedLibrary(new RedBlackTree(),SHARDS,1<<20);
+        TreeSet<Integer> bookIds=new TreeSet<>();
+        InsertBatch batch=new InsertBatch();
+        while(bookIds.size()<SHARD_BOOKS){
+            int bookId=random.nextInt(100*SHARD_BOOKS); // small bookIds, which all fall into the first of equal ranges
+            if(bookIds.add(bookId)) batch.add(bookId,"Book"+bookId,"Author"+(bookId%7),true);
+        }
+        library.bulkInsert(batch);
+        int[] sizes=library.shardSizes();
+        for(int size:sizes) check(sizes.length==SHARDS && size==SHARD_BOOKS/SHARDS,"bulk insert into an empty library: shards of "+Arrays.toString(sizes)+" books");
+        compareShards(library,bookIds,"bulk insert into an empty library");
+        RedBlackTree restored=new RedBlackTree();
+        try {
+            File file=File.createTempFile("gatorLibraryTest",".bin");
+            library.snapshot(file.getPath());
+            LibrarySnapshot.read(restored,file.getPath());
+            file.delete();
+        } catch (IOException e) {
+            throw new AssertionError("snapshot of a sharded library: "+e);
+        }
+        check(restored.colorFlipCount()==library.colorFlipCount(),"snapshot of a sharded library: "+restored.colorFlipCount()+" color flips");
+        compareShards(new ShardedLibrary(restored,SHARDS,1<<20),bookIds,"snapshot of a sharded library");
+        List<Integer> order=new ArrayList<>(bookIds);
+        Collections.shuffle(order,random);
+        for(int i=0;i<order.size();++i){
+            library.delete(order.get(i));
+            bookIds.remove(order.get(i));
+            check(library.shardCount()==SHARDS,"default shard size: "+library.shardCount()+" shards after "+(i+1)+" deletes");
+            if(i%100==0) compareShards(library,bookIds,"default shard size after "+(i+1)+" deletes");
+        }
+        library=new ShardedLibrary(new RedBlackTree(),SHARDS,64);
+        for(int step=1;step<=SHARD_STEPS;++step){
+            int bookId=random.nextInt(SHARD_BOOKS);
+            if(random.nextInt(100)<(step<SHARD_STEPS/2?60:30)){ // the library grows first, then shrinks again
+                if(bookIds.add(bookId)) library.insert(bookId,"Book"+bookId,"Author"+(bookId%7),true);
+            }
+            else{
+                library.delete(bookId);
+                bookIds.remove(bookId);
+            }
+            check(library.shardCount()>=SHARDS,"shard size 64: "+library.shardCount()+" shards after step "+step);
+            if(step%500==0 || step==SHARD_STEPS) compareShards(library,bookIds,"shard size 64 after step "+step);
+        }
+    }
+
+    static void compareShards(ShardedLibrary library, TreeSet<Integer> bookIds, String where){
+        List<Integer> found=new ArrayList<>();
+        library.readRange(Integer.MIN_VALUE,Integer.MAX_VALUE,Integer.MAX_VALUE,node -> found.add(node.bookId));
+        check(found.equals(new ArrayList<>(bookIds)),where+": the library holds "+found.size()+" books, a TreeSet "+bookIds.size());
+    }
+
+    static List<Integer> toList(int[] values){
+        List<Integer> list=new ArrayList<>(values.length);
+        for(int value:values) list.add(value);
+        return list;
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Workload generator and replay harness for gatorLibrary
+// generate writes a command file in the input grammar of gatorLibrary: a catalog of InsertBook commands followed by a
+// mix of InsertBook, BorrowBook, ReturnBook, PrintBook, PrintBooks, DeleteBook and FindClosestBook commands and Quit()
+// the generator keeps the state of the library (which books exist, who borrowed them, who waits for them), so every
+// command is valid: books are picked with zipfian popularity, returns are made by the patron who has the book and
+// --reservation-pressure is the share of borrows aimed at a book which is already borrowed (so they become reservations)
+// replay runs gatorLibrary.main on a command file in this JVM with --stats (p50/p99 latency of every command type go to
+// the standard error) and reports the commands per second and the peak heap of the run
+// usage: java gatorLibraryWorkload generate <file> [--lines=1000000] [--books=100000]
+//        [--mix=insert:5,borrow:40,return:35,print:10,printbooks:5,delete:3,closest:2] [--zipf=0.99] [--patrons=10000]
+//        [--priorities=20] [--reservation-pressure=0.3] [--range=100] [--seed=42]
+//        java gatorLibraryWorkload replay <file> [gatorLibrary options]
+
+public class gatorLibraryWorkload {
+    static final String[] COMMANDS={"insert","borrow","return","print","printbooks","delete","closest"};
+    static final String[] WORDS=("the of and a in to history war love night city house river secret garden world light "
+        +"dark stone king queen lost last first time winter summer ocean fire shadow road home star").split(" ");
+    static final String[] FIRST_NAMES=("James Mary John Patricia Robert Jennifer Michael Linda William Elizabeth David "
+        +"Barbara Richard Susan Joseph Jessica Thomas Sarah Charles Karen").split(" ");
+
+    public static void main(String[] args) throws IOException {
+        if(args.length<2) throw new IllegalArgumentException("usage: java gatorLibraryWorkload generate|replay <file> [options]");
+        if(args[0].equals("generate")) generate(args[1],Arrays.copyOfRange(args,2,args.length));
+        else if(args[0].equals("replay")) replay(args[1],Arrays.copyOfRange(args,2,args.length));
+        else throw new IllegalArgumentException("Unknown mode "+args[0]);
+    }
+
+    // Book class, the state of a book as the generator tracks it
+    static class Book {
+        final int bookId;
+        int borrowedBy=-1;
+        PriorityQueue<long[]> reservations; // {priority, arrival, patronId}, in the order gatorLibrary allots them
+        long arrivals=0;
+
+        Book(int bookId){
+            this.bookId=bookId;
+        }
+
+        boolean reservedBy(int patronId){
+            if(reservations==null) return false;
+            for(long[] reservation:reservations){
+                if(reservation[2]==patronId) return true;
+            }
+            return false;
+        }
+    }
+
+    static void generate(String fileName, String[] args) throws IOException {
+        long lines=1_000_000;
+        int books=100_000;
+        double[] weights={5,40,35,10,5,3,2};
+        double theta=0.99;
+        int patrons=10_000;
+        int priorities=20;
+        double reservationPressure=0.3;
+        int range=100;
+        long seed=42;
+        for(String arg:args){
+            String value=arg.substring(arg.indexOf('=')+1);
+            if(arg.startsWith("--lines=")) lines=Long.parseLong(value);
+            else if(arg.startsWith("--books=")) books=Integer.parseInt(value);
+            else if(arg.startsWith("--mix=")) weights=parseMix(value);
+            else if(arg.startsWith("--zipf=")) theta=Double.parseDouble(value);
+            else if(arg.startsWith("--patrons=")) patrons=Integer.parseInt(value);
+            else if(arg.startsWith("--priorities=")) priorities=Integer.parseInt(value);
+            else if(arg.startsWith("--reservation-pressure=")) reservationPressure=Double.parseDouble(value);
+            else if(arg.startsWith("--range=")) range=Integer.parseInt(value);
+            else if(arg.startsWith("--seed=")) seed=Long.parseLong(value);
+            else throw new IllegalArgumentException("Unknown option "+arg);
+        }
+        double total=0;
+        for(double weight:weights) total+=weight;
+        Random random=new Random(seed);
+        // popularity is zipfian over the slots of the books array; it is sized for every book which can be inserted,
+        // and a pick of a slot which holds no book is drawn again
+        int capacity=(int)Math.min(Integer.MAX_VALUE-8,books+(long)Math.ceil(lines*weights[0]/total)+1);
+        gatorLibraryBenchmark.ZipfianGenerator zipfian=new gatorLibraryBenchmark.ZipfianGenerator(capacity,theta,random);
+        int bookIdSpace=(int)Math.min(Integer.MAX_VALUE,4L*capacity);
+        Book[] slots=new Book[capacity];
+        int live=0;
+        Set<Integer> usedBookIds=new HashSet<>();
+        String[] lastNames=new String[2500];
+        for(int i=0;i<lastNames.length;++i) lastNames[i]="Surname"+Integer.toString(i*7919,36);
+        long[] counts=new long[COMMANDS.length];
+        try (Writer out=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName),StandardCharsets.UTF_8),1<<20)) {
+            for(long line=0;line<books+lines;++line){
+                int command=line<books?0:pick(weights,total,random);
+                if(live==0) command=0; // nothing to do but insert
+                Book book;
+                switch(COMMANDS[command]){
+                    case "insert":
+                        int bookId;
+                        do {
+                            bookId=random.nextInt(bookIdSpace);
+                        } while(!usedBookIds.add(bookId));
+                        if(live==slots.length) slots=Arrays.copyOf(slots,2*live);
+                        slots[live++]=new Book(bookId);
+                        out.write("InsertBook("+bookId+", \""+title(random)+"\", \""+author(random,lastNames)+"\", \"Yes\")\n");
+                        break;
+                    case "borrow":
+                        book=pickBook(slots,live,zipfian,random,random.nextDouble()<reservationPressure);
+                        int patronId=1+random.nextInt(patrons);
+                        for(int tries=0;tries<16 && (patronId==book.borrowedBy || book.reservedBy(patronId));++tries) patronId=1+random.nextInt(patrons);
+                        int priority=1+random.nextInt(priorities);
+                        out.write("BorrowBook("+patronId+", "+book.bookId+", "+priority+")\n");
+                        if(book.borrowedBy==-1) book.borrowedBy=patronId;
+                        else{
+                            if(book.reservations==null) book.reservations=new PriorityQueue<>((a,b) -> a[0]!=b[0]?Long.compare(a[0],b[0]):Long.compare(a[1],b[1]));
+                            book.reservations.add(new long[]{priority,book.arrivals++,patronId});
+                        }
+                        break;
+                    case "return":
+                        book=pickBook(slots,live,zipfian,random,true);
+                        if(book.borrowedBy==-1){ // no borrowed book was found, borrow this one instead
+                            book.borrowedBy=1+random.nextInt(patrons);
+                            out.write("BorrowBook("+book.borrowedBy+", "+book.bookId+", "+(1+random.nextInt(priorities))+")\n");
+                            command=1;
+                            break;
+                        }
+                        out.write("ReturnBook("+book.borrowedBy+", "+book.bookId+")\n");
+                        book.borrowedBy=book.reservations==null || book.reservations.isEmpty()?-1:(int)book.reservations.poll()[2];
+                        break;
+                    case "print":
+                        out.write("PrintBook("+pickBook(slots,live,zipfian,random,false).bookId+")\n");
+                        break;
+                    case "printbooks":
+                        int low=Math.max(0,pickBook(slots,live,zipfian,random,false).bookId-range/2);
+                        out.write("PrintBooks("+low+", "+(low+range)+")\n");
+                        break;
+                    case "delete":
+                        int slot=random.nextInt(live);
+                        out.write("DeleteBook("+slots[slot].bookId+")\n");
+                        usedBookIds.remove(slots[slot].bookId);
+                        slots[slot]=slots[--live];
+                        slots[live]=null;
+                        break;
+                    default:
+                        out.write("FindClosestBook("+random.nextInt(bookIdSpace)+")\n");
+                }
+                counts[command]++;
+            }
+            out.write("Quit()\n");
+        }
+        System.out.printf("%s: %d commands, %d books at the end%n",fileName,books+lines+1,live);
+        for(int i=0;i<COMMANDS.length;++i) System.out.printf("  %-11s %12d%n",COMMANDS[i],counts[i]);
+    }
+
+    static double[] parseMix(String value){
+        double[] weights=new double[COMMANDS.length];
+        for(String part:value.split(",")){
+            String[] entry=part.split(":");
+            int command=Arrays.asList(COMMANDS).indexOf(entry[0].trim());
+            if(command<0 || entry.length!=2) throw new IllegalArgumentException("Unknown mix entry "+part);
+            weights[command]=Double.parseDouble(entry[1]);
+        }
+        return weights;
+    }
+
+    static int pick(double[] weights, double total, Random random){
+        double value=random.nextDouble()*total;
+        for(int i=0;i<weights.length;++i){
+            value-=weights[i];
+            if(value<0) return i;
+        }
+        return weights.length-1;
+    }
+
+    // function which picks a book by popularity, preferring a borrowed (or an available) book if one is found in a
+    // few picks, so the share of reservations follows the reservation pressure instead of the share of borrowed books
+    static Book pickBook(Book[] slots, int live, gatorLibraryBenchmark.ZipfianGenerator zipfian, Random random, boolean borrowed){
+        Book book=null;
+        for(int tries=0;tries<16;++tries){
+            int slot=zipfian.next();
+            for(int draws=0;slot>=live && draws<16;++draws) slot=zipfian.next();
+            if(slot>=live) slot=random.nextInt(live);
+            book=slots[slot];
+            if((book.borrowedBy!=-1)==borrowed) return book;
+        }
+        return book;
+    }
+
+    static String title(Random random){
+        StringBuilder title=new StringBuilder();
+        int words=3+random.nextInt(4);
+        for(int i=0;i<words;++i){
+            String word=WORDS[random.nextInt(WORDS.length)];
+            if(i>0) title.append(' ').append(word);
+            else title.append(Character.toUpperCase(word.charAt(0))).append(word,1,word.length());
+        }
+        return title.toString();
+    }
+
+    // authors are zipfian too: a few last names have many books
+    static String author(Random random, String[] lastNames){
+        int lastName=(int)Math.min(lastNames.length-1,Math.abs(random.nextGaussian())*lastNames.length/4);
+        return FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]+" "+lastNames[lastName];
+    }
+
+    // function which runs gatorLibrary on a command file and reports its throughput and peak heap
+    // the output file of an earlier replay is deleted first, as gatorLibrary appends to it
+    static void replay(String fileName, String[] options) throws IOException {
+        long commands=0;
+        try (BufferedReader in=new BufferedReader(new FileReader(fileName),1<<20)) {
+            for(String line=in.readLine();line!=null;line=in.readLine()){
+                if(line.trim().isEmpty()) continue;
+                commands++;
+                if(line.startsWith("Quit(")) break;
+            }
+        }
+        File output=new File(fileName.substring(0,fileName.length()-4)+"_output_file.txt");
+        if(output.exists() && !output.delete()) throw new IOException("Can not delete "+output);
+        String[] args=new String[options.length+2];
+        args[0]=fileName;
+        args[1]="--stats";
+        System.arraycopy(options,0,args,2,options.length);
+        List<MemoryPoolMXBean> heapPools=new ArrayList<>();
+        for(MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType()==MemoryType.HEAP){
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long start=System.nanoTime();
+        gatorLibrary.main(args);
+        long nanos=System.nanoTime()-start;
+        long peakHeap=0;
+        for(MemoryPoolMXBean pool:heapPools) peakHeap+=pool.getPeakUsage().getUsed();
+        System.out.printf("%s: %d commands in %.3f s, %.0f commands/sec%n",fileName,commands,nanos/1e9,commands/(nanos/1e9));
+        System.out.printf("peak heap %.1f MB (sum of the peaks of the heap pools, max heap %.1f MB, %d cores)%n",
+            peakHeap/1048576.0,Runtime.getRuntime().maxMemory()/1048576.0,Runtime.getRuntime().availableProcessors());
+        System.out.printf("output %s: %d bytes%n",output,output.length());
+    }
+}